@@ -4,31 +4,65 @@ import org.bukkit.Bukkit;
 import org.bukkit.scheduler.BukkitRunnable;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 public class AnalysisTask extends BukkitRunnable {
 
     private final AntiToxicity plugin;
-    private final GeminiAnalyzer geminiAnalyzer;
+    private final BatchPlanner batchPlanner;
+    private final PreFilter preFilter;
     private final DiscordWebhook discordWebhook;
     private final Logger logger;
     private final String defaultMuteDuration;
     private final String defaultBanDuration;
+    private final long drainDelayTicks;
+    private final AtomicBoolean inProgress;
+    // Set on reload/disable; in streaming mode this runnable is never scheduled itself
+    private volatile boolean stopped;
+
+    private static final long DAILY_SUMMARY_MILLIS = 24L * 3600L * 1000L;
+    private long lastDailySummary = System.currentTimeMillis();
+
+    public enum Status { EMPTY, BUSY, FAILED, DONE }
+
+    /** What one call to {@link #analyze} did, for callers that report back. */
+    public static final class Outcome {
+        public final Status status;
+        public final int sanctions;
+        public final int retainedPlayers;
+
+        Outcome(Status status, int sanctions, int retainedPlayers) {
+            this.status = status;
+            this.sanctions = sanctions;
+            this.retainedPlayers = retainedPlayers;
+        }
 
-    private int cycleCount = 0;
-    private static final int DAILY_SUMMARY_CYCLES = 96; // 96 x 15min = 24h
+        static Outcome of(Status status) {
+            return new Outcome(status, 0, 0);
+        }
+    }
 
-    public AnalysisTask(AntiToxicity plugin, GeminiAnalyzer geminiAnalyzer,
-                        DiscordWebhook discordWebhook,
-                        String defaultMuteDuration, String defaultBanDuration) {
+    public AnalysisTask(AntiToxicity plugin, BatchPlanner batchPlanner,
+                        PreFilter preFilter, DiscordWebhook discordWebhook,
+                        String defaultMuteDuration, String defaultBanDuration, long drainDelayTicks,
+                        AtomicBoolean inProgress) {
         this.plugin = plugin;
-        this.geminiAnalyzer = geminiAnalyzer;
+        this.batchPlanner = batchPlanner;
+        this.preFilter = preFilter;
         this.discordWebhook = discordWebhook;
         this.logger = plugin.getLogger();
         this.defaultMuteDuration = defaultMuteDuration;
         this.defaultBanDuration = defaultBanDuration;
+        this.drainDelayTicks = drainDelayTicks;
+        this.inProgress = inProgress;
     }
 
     @Override
@@ -38,17 +72,55 @@ public class AnalysisTask extends BukkitRunnable {
             return;
         }
 
-        // Get messages without consuming them yet
-        Map<String, List<String>> recentMessages = plugin.getMessagesForAnalysis();
+        // Snapshot pending messages without consuming them yet
+        analyze(plugin.getMessagesForAnalysis());
+    }
 
-        if (recentMessages.isEmpty()) {
-            return;
+    /**
+     * Analyzes one snapshot of pending messages, applies the resulting sanctions
+     * and consumes the batch on success. Shared by the fixed-interval cycle and
+     * the streaming micro-batcher, the backlog drain and {@code /atox analyze}.
+     */
+    public Outcome analyze(ChatJournal.Batch batch) {
+        return analyze(batch, false);
+    }
+
+    /** Same, with {@code bypassPreFilter} sending every player to Gemini (the forced command). */
+    public Outcome analyze(ChatJournal.Batch batch, boolean bypassPreFilter) {
+        if (batch.isEmpty()) {
+            return Outcome.of(Status.EMPTY);
+        }
+        // The timer, the streaming flusher, backlog drains and the command all land here; one cycle at a time
+        if (!inProgress.compareAndSet(false, true)) {
+            return Outcome.of(Status.BUSY);
+        }
+        Outcome outcome;
+        try {
+            outcome = analyzeBatch(batch, bypassPreFilter);
+        } finally {
+            inProgress.set(false);
         }
 
-        int totalMessages = 0;
-        for (List<String> msgs : recentMessages.values()) {
-            totalMessages += msgs.size();
+        // Backlog left after a chunk (API just recovered): send the next chunk soon, paced
+        if (outcome.status == Status.DONE && batch.partial && !stopped) {
+            logger.info("[ATOX] Backlog remaining (" + plugin.pendingMessageCount()
+                    + " msgs), next chunk in " + (drainDelayTicks / 20) + "s.");
+            Bukkit.getScheduler().runTaskLaterAsynchronously(plugin,
+                    () -> analyze(plugin.getMessagesForAnalysis()), drainDelayTicks);
         }
+        return outcome;
+    }
+
+    /** Stops scheduling backlog drains; a cycle already running finishes. */
+    public void stop() {
+        stopped = true;
+    }
+
+    /** DONE if the batch was analyzed and consumed, FAILED if it was retained whole. */
+    private Outcome analyzeBatch(ChatJournal.Batch batch, boolean bypassPreFilter) {
+
+        Map<String, List<String>> recentMessages = batch.messages;
+        int totalMessages = batch.messageCount;
         int totalPlayers = recentMessages.size();
 
         logger.info("[ATOX] Analyzing " + totalMessages + " messages from "
@@ -57,22 +129,68 @@ public class AnalysisTask extends BukkitRunnable {
         // Build context: last 10 messages per player (before current cycle)
         Map<String, List<String>> contextMessages = plugin.getContextMessages(recentMessages.keySet(), 10);
 
-        List<GeminiAnalyzer.Sanction> sanctions = geminiAnalyzer.analyze(recentMessages, contextMessages);
+        // Local pre-filter: only players with suspicious messages go to Gemini
+        Map<String, List<String>> toAnalyze = recentMessages;
+        Set<String> severePlayers = Collections.emptySet();
+        if (preFilter != null && !bypassPreFilter) {
+            PreFilter.Routing routing = preFilter.route(recentMessages, contextMessages);
+            toAnalyze = routing.suspicious;
+            contextMessages = routing.context;
+            severePlayers = routing.severePlayers;
+            logger.info("[ATOX] Pre-filter: " + routing.skippedMessages + "/" + totalMessages
+                    + " messages skipped, " + toAnalyze.size() + " player(s) sent to AI.");
+        }
+
+        // BAN/IPBAN are applied as soon as Gemini produces them, the rest after the whole cycle
+        Map<String, GeminiAnalyzer.Sanction> appliedEarly = new ConcurrentHashMap<>();
+        BatchPlanner.Result result = batchPlanner.analyze(toAnalyze, contextMessages, sanction -> {
+            if (isSevere(sanction.action) && appliedEarly.putIfAbsent(earlyKey(sanction), sanction) == null) {
+                logger.info("[ATOX] Applying " + sanction.action + " on " + sanction.player + " ahead of the cycle.");
+                plugin.getSanctionExecutor().submit(sanction);
+            }
+        }, severePlayers);
+
+        // A ban that already ran is final: its player's messages are consumed even when the shard
+        // failed afterwards, so the next cycle cannot send the same ban again
+        Set<String> bannedEarly = new HashSet<>();
+        for (GeminiAnalyzer.Sanction s : appliedEarly.values()) bannedEarly.add(s.player.toLowerCase(Locale.ROOT));
+        SanctionTracker tracker = plugin.getSanctionTracker();
 
-        // null = API error -> retain messages, they accumulate for next cycle
-        if (sanctions == null) {
+        // Every shard failed -> retain messages, they accumulate for next cycle
+        if (result.isTotalFailure(toAnalyze.size())) {
             logger.warning("[ATOX] API failed. Messages retained (" + totalMessages
                     + " msgs). Will retry next cycle with accumulated messages.");
-            return;
+            if (appliedEarly.isEmpty()) {
+                return Outcome.of(Status.FAILED);
+            }
+            Set<String> retained = withoutBanned(recentMessages.keySet(), bannedEarly);
+            plugin.markAnalysisComplete(batch, retained);
+            List<GeminiAnalyzer.Sanction> early = new ArrayList<>(appliedEarly.values());
+            for (GeminiAnalyzer.Sanction s : early) {
+                tracker.recordSanction(s);
+            }
+            discordWebhook.sendReport(early, totalMessages, totalPlayers);
+            return new Outcome(Status.FAILED, early.size(), retained.size());
         }
 
-        // API succeeded -> mark messages as consumed
-        plugin.markAnalysisComplete();
+        // Consume exactly the analyzed range; players of failed shards stay pending
+        Set<String> retained = withoutBanned(result.failedPlayers, bannedEarly);
+        plugin.markAnalysisComplete(batch, retained);
+        if (!retained.isEmpty()) {
+            logger.warning("[ATOX] " + retained.size() + " player(s) in failed shards retained for next cycle.");
+        }
+        // Early bans from a shard that failed later are not in the result, but they ran
+        List<GeminiAnalyzer.Sanction> sanctions = new ArrayList<>(result.sanctions);
+        Set<String> returned = new HashSet<>();
+        for (GeminiAnalyzer.Sanction s : result.sanctions) returned.add(earlyKey(s));
+        for (Map.Entry<String, GeminiAnalyzer.Sanction> e : appliedEarly.entrySet()) {
+            if (!returned.contains(e.getKey())) sanctions.add(e.getValue());
+        }
 
-        SanctionTracker tracker = plugin.getSanctionTracker();
         tracker.recordCycle(totalMessages);
 
-        List<GeminiAnalyzer.Sanction> finalSanctions = plugin.deduplicateSanctions(sanctions);
+        // Escalation looks at the window before this cycle's sanctions are recorded
+        List<GeminiAnalyzer.Sanction> finalSanctions = plugin.applyEscalation(plugin.deduplicateSanctions(sanctions));
 
         for (GeminiAnalyzer.Sanction s : finalSanctions) {
             tracker.recordSanction(s);
@@ -81,27 +199,12 @@ public class AnalysisTask extends BukkitRunnable {
         if (!finalSanctions.isEmpty()) {
             logger.info("[ATOX] Gemini returned " + sanctions.size() + " sanction(s), "
                     + finalSanctions.size() + " after dedup.");
-            Bukkit.getScheduler().runTask(plugin, () -> {
-                for (GeminiAnalyzer.Sanction sanction : finalSanctions) {
-                    String cmd = plugin.buildCommand(sanction);
-                    if (cmd != null) {
-                        logger.info("[ATOX] Executing: " + cmd);
-                        try {
-                            boolean success = Bukkit.dispatchCommand(Bukkit.getConsoleSender(), cmd);
-                            if (success) {
-                                logger.info("[ATOX] Command executed successfully: " + sanction.action + " on " + sanction.player);
-                            } else {
-                                logger.warning("[ATOX] Command execution failed: " + cmd);
-                            }
-                        } catch (Exception e) {
-                            logger.severe("[ATOX] Error executing command '" + cmd + "': " + e.getMessage());
-                            e.printStackTrace();
-                        }
-                    } else {
-                        logger.warning("[ATOX] Failed to build command for sanction: " + sanction.action + " on " + sanction.player);
-                    }
+            SanctionExecutor executor = plugin.getSanctionExecutor();
+            for (GeminiAnalyzer.Sanction sanction : finalSanctions) {
+                if (!appliedEarly.containsKey(earlyKey(sanction))) {
+                    executor.submit(sanction);
                 }
-            });
+            }
         } else {
             logger.info("[ATOX] No sanctions needed this cycle.");
         }
@@ -109,21 +212,28 @@ public class AnalysisTask extends BukkitRunnable {
         discordWebhook.sendReport(finalSanctions, totalMessages, totalPlayers);
 
         // Daily summary every ~24h
-        cycleCount++;
-        if (cycleCount >= DAILY_SUMMARY_CYCLES) {
-            cycleCount = 0;
+        long now = System.currentTimeMillis();
+        if (now - lastDailySummary >= DAILY_SUMMARY_MILLIS) {
+            lastDailySummary = now;
             discordWebhook.sendDailySummary(tracker);
         }
+        return new Outcome(Status.DONE, finalSanctions.size(), retained.size());
     }
 
-    private int severityOf(String action) {
-        switch (action) {
-            case "IPBAN": return 5;
-            case "BAN":   return 4;
-            case "KICK":  return 3;
-            case "MUTE":  return 2;
-            case "WARN":  return 1;
-            default:      return 0;
+    private static Set<String> withoutBanned(Set<String> players, Set<String> bannedEarly) {
+        if (bannedEarly.isEmpty()) return players;
+        Set<String> result = new HashSet<>();
+        for (String player : players) {
+            if (!bannedEarly.contains(player.toLowerCase(Locale.ROOT))) result.add(player);
         }
+        return result;
+    }
+
+    private static boolean isSevere(String action) {
+        return action.equals("BAN") || action.equals("IPBAN");
+    }
+
+    private static String earlyKey(GeminiAnalyzer.Sanction sanction) {
+        return sanction.player.toLowerCase(Locale.ROOT) + "|" + sanction.action;
     }
 }
@@ -3,6 +3,8 @@ package com.antitoxicity;
 import org.bukkit.ChatColor;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
@@ -11,102 +13,155 @@ import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitTask;
 
+import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class AntiToxicity extends JavaPlugin implements Listener {
 
     // ---- DIRECT MESSAGE STORAGE (never recreated) ----
-    private final List<StoredMsg> allMessages = new CopyOnWriteArrayList<>();
-    private volatile long lastAnalysisTime = 0;
+    private ChatJournal journal;
 
+    private HttpTransport httpTransport;
     private GeminiAnalyzer geminiAnalyzer;
+    private BatchPlanner batchPlanner;
+    private PreFilter preFilter;
+    private DiscordDispatcher discordDispatcher;
+    private volatile AuditLog auditLog;
+    private volatile boolean debug;
+    private volatile boolean escalationEnabled;
     private DiscordWebhook discordWebhook;
     private BukkitTask analysisTask;
+    private AnalysisTask analysisCycle;
+    // Outlives reloads, so a cycle finishing on the old planner never overlaps the new one's
+    private final AtomicBoolean cycleRunning = new AtomicBoolean(false);
+    private BukkitTask cacheFlushTask;
     private long maxAgeMillis;
+    private int backlogMaxMessages;
+    private long backlogMaxChars;
+    private int drainChunkMessages;
     private SanctionTracker sanctionTracker;
+    private SanctionStore sanctionStore;
+    private ChatJournalStore chatJournalStore;
+    private SanctionExecutor sanctionExecutor;
     private UsernameCache usernameCache;
+    private UsernameScreener usernameScreener;
+    private UsernamePrewarmJob prewarmJob;
 
     // ---- Public API for ChatListener ----
     public void storeMessage(String playerName, String message) {
-        allMessages.add(new StoredMsg(playerName, message, System.currentTimeMillis()));
-        getLogger().info("STORED from " + playerName
-                + " | total=" + allMessages.size() + " | msg=" + message);
+        journal.append(playerName, message, System.currentTimeMillis());
+        audit(AuditLog.Level.INFO, "chat", playerName, message);
+        if (debug) {
+            getLogger().info("STORED from " + playerName
+                    + " | total=" + journal.size() + " | msg=" + message);
+        }
     }
 
-    public Map<String, List<String>> getMessagesForAnalysis() {
-        long since = lastAnalysisTime;
+    /** Console output for per-message and per-cycle details, off unless {@code debug: true}. */
+    public boolean isDebug() {
+        return debug;
+    }
 
-        getLogger().info("getMessages: since=" + since + " total=" + allMessages.size());
+    /** Queues an audit event; a no-op when the audit log is disabled. */
+    public void audit(AuditLog.Level level, String event, String player, String detail) {
+        AuditLog log = auditLog;
+        if (log != null) log.record(level, event, player, detail);
+    }
 
-        Map<String, List<String>> result = new LinkedHashMap<>();
-        for (StoredMsg sm : allMessages) {
-            if (sm.timestamp > since) {
-                result.computeIfAbsent(sm.playerName, k -> new ArrayList<>()).add(sm.message);
-            }
+    /** Snapshots every message past the analysis cursor without consuming it. */
+    public ChatJournal.Batch getMessagesForAnalysis() {
+        if (debug) {
+            getLogger().info("getMessages: cursor=" + journal.cursor() + " head=" + journal.head()
+                    + " total=" + journal.size());
         }
 
-        int count = 0;
-        for (List<String> v : result.values()) count += v.size();
-        getLogger().info("Found " + count + " messages from "
-                + result.size() + " players (not yet consumed)");
+        // Keep the backlog bounded during outages, favouring suspicious and recent lines
+        PreFilter scorer = preFilter;
+        int shed = journal.enforceCap(backlogMaxMessages, backlogMaxChars,
+                scorer != null ? scorer::rank : msg -> 0);
+        if (shed > 0) {
+            getLogger().warning("[ATOX] Backlog over cap (" + backlogMaxMessages + " msgs / " + backlogMaxChars
+                    + " chars): shed " + shed + " lowest-priority message(s).");
+        }
 
-        return result;
+        // Drain a large backlog in chunks instead of one oversized prompt
+        ChatJournal.Batch batch = journal.snapshot(drainChunkMessages);
+
+        if (debug) {
+            getLogger().info("Found " + batch.messageCount + " messages from "
+                    + batch.messages.size() + " players (not yet consumed)");
+        }
+        audit(AuditLog.Level.DEBUG, "snapshot", null, "cursor=" + journal.cursor() + " messages="
+                + batch.messageCount + " players=" + batch.messages.size() + " partial=" + batch.partial);
+
+        return batch;
+    }
+
+    /** Only call this after a SUCCESSFUL API response. Consumes exactly the analyzed batch. */
+    public void markAnalysisComplete(ChatJournal.Batch batch) {
+        markAnalysisComplete(batch, Collections.emptySet());
     }
 
-    /** Only call this after a SUCCESSFUL API response */
-    public void markAnalysisComplete() {
-        lastAnalysisTime = System.currentTimeMillis();
-        getLogger().info("Analysis timestamp advanced. Messages consumed.");
+    /** Consumes the batch except for players whose shard failed; their messages stay pending. */
+    public void markAnalysisComplete(ChatJournal.Batch batch, Set<String> retainedPlayers) {
+        journal.commit(batch, retainedPlayers);
+        audit(AuditLog.Level.DEBUG, "commit", null, "cursor=" + batch.toSeq + " retained=" + retainedPlayers.size());
+        if (debug) getLogger().info("Analysis cursor advanced to " + batch.toSeq + ". Messages consumed"
+                + (retainedPlayers.isEmpty() ? "." : " (" + retainedPlayers.size() + " player(s) retained)."));
     }
 
     public SanctionTracker getSanctionTracker() { return sanctionTracker; }
 
+    public SanctionExecutor getSanctionExecutor() { return sanctionExecutor; }
+
+    /** Applies the escalation policy (if {@code escalation.enabled}) to already deduplicated sanctions. */
+    public List<GeminiAnalyzer.Sanction> applyEscalation(List<GeminiAnalyzer.Sanction> sanctions) {
+        if (!escalationEnabled || sanctions.isEmpty()) return sanctions;
+        List<GeminiAnalyzer.Sanction> result = new ArrayList<>(sanctions.size());
+        for (GeminiAnalyzer.Sanction s : sanctions) {
+            result.add(sanctionTracker.escalate(s));
+        }
+        return result;
+    }
+
     /** Returns the last N messages per player that were already consumed (before current cycle) */
     public Map<String, List<String>> getContextMessages(java.util.Set<String> players, int maxPerPlayer) {
         Map<String, List<String>> context = new LinkedHashMap<>();
         for (String player : players) {
-            List<String> msgs = new ArrayList<>();
-            for (StoredMsg sm : allMessages) {
-                if (sm.playerName.equalsIgnoreCase(player) && sm.timestamp <= lastAnalysisTime) {
-                    msgs.add(sm.message);
-                }
-            }
-            int from = Math.max(0, msgs.size() - maxPerPlayer);
-            context.put(player, new ArrayList<>(msgs.subList(from, msgs.size())));
+            context.put(player, journal.recentConsumed(player, maxPerPlayer));
         }
         return context;
     }
 
+    public long pendingMessageCount() {
+        return journal.pending();
+    }
+
+    public long pendingChars() {
+        return journal.pendingChars();
+    }
+
     public int storedMessageCount() {
-        return allMessages.size();
+        return journal.size();
     }
 
     public int storedPlayerCount() {
-        Set<String> p = new HashSet<>();
-        for (StoredMsg sm : allMessages) p.add(sm.playerName);
-        return p.size();
+        return journal.playerCount();
     }
 
     private void purgeOldMessages() {
         long cutoff = System.currentTimeMillis() - maxAgeMillis;
-        int before = allMessages.size();
-        allMessages.removeIf(sm -> sm.timestamp < cutoff);
-        int after = allMessages.size();
-        if (before != after) {
-            getLogger().info("Purged " + (before - after) + " old messages. Remaining: " + after);
+        int purged = journal.purgeOlderThan(cutoff);
+        if (purged > 0) {
+            getLogger().info("Purged " + purged + " old messages. Remaining: " + journal.size());
         }
-    }
-
-    // ---- Inner class ----
-    static final class StoredMsg {
-        final String playerName;
-        final String message;
-        final long timestamp;
-        StoredMsg(String playerName, String message, long timestamp) {
-            this.playerName = playerName;
-            this.message = message;
-            this.timestamp = timestamp;
+        if (sanctionTracker != null) {
+            sanctionTracker.pruneEscalation();
         }
     }
 
@@ -129,9 +184,42 @@ public class AntiToxicity extends JavaPlugin implements Listener {
         if (analysisTask != null) {
             analysisTask.cancel();
         }
+        if (analysisCycle != null) {
+            analysisCycle.stop();
+        }
+        if (batchPlanner != null) {
+            // In-flight shards get a few seconds; an unfinished cycle commits nothing and replays after restart
+            batchPlanner.shutdown(5000);
+        }
+        if (cacheFlushTask != null) {
+            cacheFlushTask.cancel();
+        }
+        if (prewarmJob != null) {
+            prewarmJob.stop();
+        }
         if (usernameCache != null) {
             usernameCache.saveCache();
         }
+        if (discordDispatcher != null) {
+            discordDispatcher.shutdown();
+        }
+        if (sanctionExecutor != null) {
+            sanctionExecutor.shutdown();
+        }
+        if (chatJournalStore != null) {
+            chatJournalStore.shutdown();
+        }
+        if (sanctionStore != null) {
+            sanctionStore.shutdown();
+        }
+        if (auditLog != null) {
+            auditLog.shutdown();
+        }
+        if (httpTransport != null) {
+            // After the dispatcher and the planner, which still send while they drain
+            httpTransport.shutdown();
+            httpTransport = null;
+        }
         getLogger().info("ATOX disabled.");
     }
 
@@ -139,6 +227,24 @@ public class AntiToxicity extends JavaPlugin implements Listener {
         if (analysisTask != null) {
             analysisTask.cancel();
         }
+        if (analysisCycle != null) {
+            analysisCycle.stop();
+        }
+        if (prewarmJob != null) {
+            prewarmJob.stop();
+        }
+        if (batchPlanner != null) {
+            // The old planner finishes its current cycle in the background
+            batchPlanner.shutdown(0);
+        }
+        if (discordDispatcher != null) {
+            discordDispatcher.shutdown();
+            discordDispatcher = null;
+        }
+        if (auditLog != null) {
+            auditLog.shutdown();
+            auditLog = null;
+        }
 
         String apiKey = getConfig().getString("gemini.api-key", "");
         String model = getConfig().getString("gemini.model", "gemini-1.5-flash");
@@ -152,6 +258,36 @@ public class AntiToxicity extends JavaPlugin implements Listener {
         String banDuration = getConfig().getString("durations.ban", "1d");
 
         maxAgeMillis = maxAgeHours * 3600L * 1000L;
+        debug = getConfig().getBoolean("debug", false);
+        if (getConfig().getBoolean("audit.enabled", true)) {
+            Map<String, Double> sampleRates = new HashMap<>();
+            ConfigurationSection rates = getConfig().getConfigurationSection("audit.sample-rates");
+            if (rates != null) {
+                for (String event : rates.getKeys(false)) {
+                    sampleRates.put(event, rates.getDouble(event, 1.0));
+                }
+            }
+            getDataFolder().mkdirs();
+            auditLog = new AuditLog(getDataFolder(), getLogger(),
+                    AuditLog.parseLevel(getConfig().getString("audit.level", "INFO")), sampleRates,
+                    getConfig().getInt("audit.buffer-size", 8192),
+                    getConfig().getLong("audit.max-file-mb", 10) * 1024L * 1024L,
+                    getConfig().getInt("audit.max-files", 5));
+        }
+        backlogMaxMessages = Math.max(1, getConfig().getInt("backlog.max-messages", 3000));
+        backlogMaxChars = Math.max(1, getConfig().getLong("backlog.max-chars", 300000));
+        drainChunkMessages = Math.max(1, getConfig().getInt("backlog.drain-chunk-messages", 400));
+
+        if (journal == null) {
+            journal = new ChatJournal(getConfig().getInt("message-buffer-per-player", 500));
+            if (getConfig().getBoolean("chat-journal.enabled", true)) {
+                getDataFolder().mkdirs();
+                chatJournalStore = new ChatJournalStore(getDataFolder(), getLogger(),
+                        getConfig().getLong("chat-journal.sync-interval-ms", 1000),
+                        getConfig().getLong("chat-journal.segment-kb", 4096) * 1024L, maxAgeMillis);
+                chatJournalStore.open(journal);
+            }
+        }
 
         if (apiKey.isEmpty()) {
             getLogger().severe("Gemini API key is not configured!");
@@ -160,25 +296,111 @@ public class AntiToxicity extends JavaPlugin implements Listener {
             getLogger().warning("Discord webhook URL is not configured!");
         }
 
+        long tickBudgetMillis = getConfig().getLong("sanctions.tick-budget-ms", 5);
+        if (sanctionExecutor != null) {
+            sanctionExecutor.setBudgetMillis(tickBudgetMillis);
+        } else {
+            sanctionExecutor = new SanctionExecutor(this, tickBudgetMillis);
+        }
+
         int warnThreshold = getConfig().getInt("escalation.warns-for-mute", 3);
         int muteThreshold = getConfig().getInt("escalation.mutes-for-ban", 2);
         int escalationDays = getConfig().getInt("escalation.window-days", 7);
+        escalationEnabled = getConfig().getBoolean("escalation.enabled", false);
         if (sanctionTracker == null) {
-            sanctionTracker = new SanctionTracker(getLogger(), warnThreshold, muteThreshold, escalationDays);
+            int historySize = getConfig().getInt("stats.history-size", 1000);
+            sanctionTracker = new SanctionTracker(getLogger(), warnThreshold, muteThreshold, escalationDays, historySize);
+            if (getConfig().getBoolean("stats.persist", true)) {
+                getDataFolder().mkdirs();
+                sanctionStore = new SanctionStore(getDataFolder(), getLogger(),
+                        escalationDays * 24L * 3600L * 1000L, historySize,
+                        getConfig().getLong("stats.segment-kb", 1024) * 1024L,
+                        getConfig().getInt("stats.compact-after-segments", 4),
+                        getConfig().getLong("stats.group-commit-ms", 50));
+                sanctionTracker.restore(sanctionStore.load());
+                sanctionTracker.setStore(sanctionStore);
+            }
         }
 
-        geminiAnalyzer = new GeminiAnalyzer(apiKey, model, fallbackModel, serverType, getLogger());
-        discordWebhook = new DiscordWebhook(webhookUrl, serverName, serverType, getLogger());
-        usernameCache = new UsernameCache(getDataFolder(), getLogger());
+        // One client for the plugin's lifetime: a reload keeps its pool, onDisable shuts it down
+        if (httpTransport == null) {
+            httpTransport = new HttpTransport(Duration.ofSeconds(getConfig().getInt("gemini.connect-timeout-seconds", 30)));
+        }
+        HttpTransport.Endpoint geminiEndpoint = new HttpTransport.Endpoint(
+                Duration.ofSeconds(getConfig().getInt("gemini.timeout-seconds", 60)),
+                getConfig().getBoolean("gemini.gzip-requests", false));
+        List<String> models = getConfig().getStringList("gemini.models");
+        if (models.isEmpty()) {
+            models = Arrays.asList(model, fallbackModel);
+        }
+        ModelRouter router = new ModelRouter(models, getLogger(),
+                getConfig().getInt("gemini.circuit-breaker.failure-threshold", 3),
+                getConfig().getLong("gemini.circuit-breaker.open-seconds", 15) * 1000L,
+                getConfig().getLong("gemini.circuit-breaker.max-open-seconds", 600) * 1000L);
+        // Older configs only had the streaming-mode limit
+        RateLimiter requestLimiter = new RateLimiter(getConfig().getInt("analysis.requests-per-minute",
+                getConfig().getInt("analysis.streaming.requests-per-minute", 12)));
+        geminiAnalyzer = new GeminiAnalyzer(apiKey, router, serverType, getLogger(), httpTransport,
+                getConfig().getString("gemini.endpoint", "https://generativelanguage.googleapis.com/v1beta"),
+                geminiEndpoint, getConfig().getBoolean("gemini.stream-responses", true),
+                getConfig().getBoolean("gemini.structured-output", true),
+                getConfig().getLong("gemini.hedge-after-ms", 0),
+                requestLimiter);
+        batchPlanner = new BatchPlanner(geminiAnalyzer, getLogger(),
+                getConfig().getInt("analysis.shard-token-budget", 6000),
+                getConfig().getInt("analysis.parallel-requests", 3),
+                getConfig().getInt("analysis.shard-retries", 2),
+                getConfig().getLong("analysis.shard-timeout-seconds", 180) * 1000L);
+        if (!webhookUrl.isEmpty()) {
+            getDataFolder().mkdirs();
+            discordDispatcher = new DiscordDispatcher(webhookUrl, httpTransport, getLogger(), getDataFolder(),
+                    getConfig().getInt("discord-queue-size", 200));
+        }
+        discordWebhook = new DiscordWebhook(webhookUrl, serverName, serverType, getLogger(), discordDispatcher);
+        int cacheMaxEntries = getConfig().getInt("username-check.cache.max-entries", 50000);
+        int offensiveTtlDays = getConfig().getInt("username-check.cache.offensive-ttl-days", 90);
+        int safeTtlDays = getConfig().getInt("username-check.cache.safe-ttl-days", 30);
+        if (usernameCache == null) {
+            getDataFolder().mkdirs();
+            usernameCache = new UsernameCache(getDataFolder(), getLogger(), cacheMaxEntries, offensiveTtlDays, safeTtlDays);
+        } else {
+            usernameCache.configure(cacheMaxEntries, offensiveTtlDays, safeTtlDays);
+        }
+        if (cacheFlushTask != null) {
+            cacheFlushTask.cancel();
+        }
+        long flushTicks = Math.max(1, getConfig().getInt("username-check.cache.write-behind-seconds", 30)) * 20L;
+        cacheFlushTask = getServer().getScheduler().runTaskTimerAsynchronously(this,
+                usernameCache::flush, flushTicks, flushTicks);
+        usernameScreener = new UsernameScreener(geminiAnalyzer, usernameCache, getLogger());
+
+        preFilter = null;
+        if (getConfig().getBoolean("prefilter.enabled", false)) {
+            List<String> keywords = getConfig().getStringList("prefilter.keywords");
+            preFilter = new PreFilter(keywords, getConfig().getInt("prefilter.severe-score", 2));
+            getLogger().info("Pre-filter enabled with " + keywords.size() + " keyword(s).");
+        }
 
-        long intervalTicks = intervalMinutes * 60L * 20L;
-        AnalysisTask task = new AnalysisTask(
-                this, geminiAnalyzer, discordWebhook,
-                muteDuration, banDuration
+        AnalysisTask task = analysisCycle = new AnalysisTask(
+                this, batchPlanner, preFilter, discordWebhook,
+                muteDuration, banDuration,
+                Math.max(1, getConfig().getInt("backlog.drain-interval-seconds", 20)) * 20L,
+                cycleRunning
         );
-        analysisTask = task.runTaskTimerAsynchronously(this, intervalTicks, intervalTicks);
 
-        getLogger().info("Analysis scheduled every " + intervalMinutes + " minutes.");
+        if ("streaming".equalsIgnoreCase(getConfig().getString("analysis.mode", "batch"))) {
+            StreamingAnalysisTask streaming = new StreamingAnalysisTask(this, task,
+                    getConfig().getInt("analysis.streaming.max-messages", 50),
+                    getConfig().getLong("analysis.streaming.max-chars", 8000),
+                    getConfig().getLong("analysis.streaming.max-latency-seconds", 5) * 1000L,
+                    requestLimiter);
+            analysisTask = streaming.runTaskTimerAsynchronously(this, 10L, 10L);
+            getLogger().info("Streaming analysis enabled.");
+        } else {
+            long intervalTicks = intervalMinutes * 60L * 20L;
+            analysisTask = task.runTaskTimerAsynchronously(this, intervalTicks, intervalTicks);
+            getLogger().info("Analysis scheduled every " + intervalMinutes + " minutes.");
+        }
     }
 
     // ---- Commands ----
@@ -216,52 +438,35 @@ public class AntiToxicity extends JavaPlugin implements Listener {
                 sender.sendMessage(colorize("  &7Type: &f" + getConfig().getString("server-type")));
                 sender.sendMessage(colorize("  &7Messages: &f" + storedMessageCount()));
                 sender.sendMessage(colorize("  &7Players: &f" + storedPlayerCount()));
+                sender.sendMessage(colorize("  &7Backlog: &f" + pendingMessageCount() + " pending, "
+                        + journal.shedTotal() + " shed since start"));
+                sender.sendMessage(colorize("  &7Sanction queue: &f" + sanctionExecutor.pending()));
+                for (String line : sanctionExecutor.describe()) {
+                    sender.sendMessage(colorize("    &7" + line));
+                }
+                if (preFilter != null) {
+                    sender.sendMessage(colorize("  &7Pre-filter: &f" + preFilter.getRouted() + " routed, "
+                            + String.format("%.1f", preFilter.getHitRate()) + "% sent to AI, "
+                            + String.format("%.1f", 100.0 - preFilter.getHitRate()) + "% skipped"));
+                }
+                if (geminiAnalyzer != null) {
+                    sender.sendMessage(colorize("  &7Gemini answers: &f" + geminiAnalyzer.getParseStats()));
+                    for (String line : geminiAnalyzer.getRouter().describe()) {
+                        sender.sendMessage(colorize("  &7Model &f" + line));
+                    }
+                }
+                break;
+
+            case "usernames":
+                handleUsernamesCommand(sender, args);
                 break;
 
             case "analyze":
                 sender.sendMessage(colorize("&e[ATOX] &7Forcing analysis..."));
                 getServer().getScheduler().runTaskAsynchronously(this, () -> {
                     purgeOldMessages();
-                    Map<String, List<String>> msgs = getMessagesForAnalysis();
-
-                    if (msgs.isEmpty()) {
-                        getServer().getScheduler().runTask(this, () ->
-                                sender.sendMessage(colorize("&c[ATOX] &7No messages to analyze.")));
-                        return;
-                    }
-
-                    int total = 0;
-                    for (List<String> l : msgs.values()) total += l.size();
-                    int players = msgs.size();
-
-                    List<GeminiAnalyzer.Sanction> sanctions = geminiAnalyzer.analyze(msgs);
-
-                    if (sanctions == null) {
-                        getServer().getScheduler().runTask(this, () ->
-                                sender.sendMessage(colorize("&c[ATOX] &7API error. Messages will be retained for the next analysis cycle.")));
-                        return;
-                    }
-
-                    markAnalysisComplete();
-
-                    List<GeminiAnalyzer.Sanction> dedupedSanctions = deduplicateSanctions(sanctions);
-
-                    getServer().getScheduler().runTask(this, () -> {
-                        if (!dedupedSanctions.isEmpty()) {
-                            for (GeminiAnalyzer.Sanction s : dedupedSanctions) {
-                                String cmd = buildCommand(s);
-                                if (cmd != null) {
-                                    getLogger().info("Executing: " + cmd);
-                                    getServer().dispatchCommand(getServer().getConsoleSender(), cmd);
-                                }
-                            }
-                            sender.sendMessage(colorize("&a[ATOX] &7" + dedupedSanctions.size() + " sanction(s) applied."));
-                        } else {
-                            sender.sendMessage(colorize("&a[ATOX] &7No sanctions needed."));
-                        }
-                    });
-
-                    discordWebhook.sendReport(dedupedSanctions, total, players);
+                    AnalysisTask.Outcome outcome = analysisCycle.analyze(getMessagesForAnalysis(), true);
+                    getServer().getScheduler().runTask(this, () -> reportForcedAnalysis(sender, outcome));
                 });
                 break;
 
@@ -272,6 +477,76 @@ public class AntiToxicity extends JavaPlugin implements Listener {
         return true;
     }
 
+    private void reportForcedAnalysis(CommandSender sender, AnalysisTask.Outcome outcome) {
+        switch (outcome.status) {
+            case EMPTY:
+                sender.sendMessage(colorize("&c[ATOX] &7No messages to analyze."));
+                break;
+            case BUSY:
+                sender.sendMessage(colorize("&e[ATOX] &7An analysis cycle is already running, its results will be applied when it ends."));
+                break;
+            case FAILED:
+                sender.sendMessage(colorize("&c[ATOX] &7API error. Messages will be retained for the next analysis cycle."));
+                break;
+            default:
+                if (outcome.retainedPlayers > 0) {
+                    sender.sendMessage(colorize("&e[ATOX] &7" + outcome.retainedPlayers
+                            + " player(s) could not be analyzed and were retained."));
+                }
+                if (outcome.sanctions > 0) {
+                    sender.sendMessage(colorize("&a[ATOX] &7" + outcome.sanctions + " sanction(s) queued for execution."));
+                } else {
+                    sender.sendMessage(colorize("&a[ATOX] &7No sanctions needed."));
+                }
+                break;
+        }
+    }
+
+    private void handleUsernamesCommand(CommandSender sender, String[] args) {
+        if (args.length < 2 || !args[1].equalsIgnoreCase("prewarm")) {
+            sender.sendMessage(colorize("&e[ATOX] &7Usage: /atox usernames prewarm [stop|status]"));
+            return;
+        }
+        String action = args.length >= 3 ? args[2].toLowerCase() : "start";
+        boolean running = prewarmJob != null && !prewarmJob.isFinished();
+
+        switch (action) {
+            case "status":
+                sender.sendMessage(colorize("&e[ATOX] &7Prewarm " + (running ? "running: " : "idle. Last run: ")
+                        + (prewarmJob != null ? prewarmJob.status() : "never")));
+                break;
+            case "stop":
+                if (running) {
+                    prewarmJob.stop();
+                    sender.sendMessage(colorize("&e[ATOX] &7Stopping prewarm. Run it again to resume."));
+                } else {
+                    sender.sendMessage(colorize("&c[ATOX] &7No prewarm job is running."));
+                }
+                break;
+            default:
+                if (running) {
+                    sender.sendMessage(colorize("&c[ATOX] &7A prewarm job is already running: " + prewarmJob.status()));
+                    return;
+                }
+                // Player data and usercache.json are read by the job's thread, not the main thread
+                prewarmJob = new UsernamePrewarmJob(geminiAnalyzer, usernameCache, getLogger(),
+                        () -> UsernamePrewarmJob.collectKnownNames(
+                                getServer().getOfflinePlayers(), getServer().getWorldContainer(), getLogger()),
+                        getConfig().getInt("username-check.prewarm.batch-size", 100),
+                        getConfig().getInt("username-check.prewarm.requests-per-minute", 6),
+                        msg -> {
+                            getLogger().info("[ATOX] " + msg);
+                            if (isEnabled()) {
+                                getServer().getScheduler().runTask(this, () -> sender.sendMessage(colorize("&e[ATOX] &7" + msg)));
+                            }
+                        });
+                Thread worker = new Thread(prewarmJob, "ATOX-Prewarm");
+                worker.setDaemon(true);
+                worker.start();
+                break;
+        }
+    }
+
     String buildCommand(GeminiAnalyzer.Sanction s) {
         String trigger = (s.triggerMessage != null && !s.triggerMessage.isEmpty() && !s.triggerMessage.equals("N/A"))
                 ? " | Message: \"" + s.triggerMessage.replace("\"", "'") + "\""
@@ -367,15 +642,16 @@ public class AntiToxicity extends JavaPlugin implements Listener {
         sender.sendMessage(colorize("&c&lATOX &7- Commands:"));
         sender.sendMessage(colorize("  &e/atox reload &7- Reload configuration"));
         sender.sendMessage(colorize("  &e/atox status &7- Show plugin status"));
-        sender.sendMessage(colorize("  &e/atox analyze &7- Force an analysis now"));
+        sender.sendMessage(colorize("  &e/atox analyze &7- Force a full analysis now (bypasses the pre-filter)"));
         sender.sendMessage(colorize("  &e/atox stats &7- Show sanction statistics"));
         sender.sendMessage(colorize("  &e/atox fp &7- Report a false positive"));
+        sender.sendMessage(colorize("  &e/atox usernames prewarm [stop|status] &7- Screen all known player names"));
     }
 
     @EventHandler(priority = EventPriority.HIGH)
     public void onPlayerPreLogin(AsyncPlayerPreLoginEvent event) {
         if (!getConfig().getBoolean("username-check.enabled", true)) return;
-        if (geminiAnalyzer == null || usernameCache == null) return;
+        if (usernameScreener == null || usernameCache == null) return;
 
         String name = event.getName();
         
@@ -385,10 +661,7 @@ public class AntiToxicity extends JavaPlugin implements Listener {
             // Username was analyzed before
             if (!cachedResult.isEmpty()) {
                 // Cached as offensive
-                String kickMsg = getConfig().getString("username-check.kick-message",
-                        "Your username is not allowed on this server.\nReason: {reason}");
-                kickMsg = kickMsg.replace("{reason}", cachedResult);
-                event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER, kickMsg);
+                event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER, usernameKickMessage(cachedResult));
                 getLogger().info("[ATOX] Offensive username blocked (cache): " + name + " | Reason: " + cachedResult);
                 discordWebhook.sendUsernameBlock(name, cachedResult);
             } else {
@@ -398,17 +671,38 @@ public class AntiToxicity extends JavaPlugin implements Listener {
             return;
         }
 
-        // Not cached, analyze with AI
-        String offensiveReason = geminiAnalyzer.analyzeUsername(name);
-        
-        // Cache the result
-        usernameCache.cacheResult(name, offensiveReason);
-
-        if (offensiveReason != null && !offensiveReason.isEmpty()) {
-            String kickMsg = getConfig().getString("username-check.kick-message",
-                    "Your username is not allowed on this server.\nReason: {reason}");
-            kickMsg = kickMsg.replace("{reason}", offensiveReason);
-            event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER, kickMsg);
+        // Not cached, analyze with AI (shared with any concurrent login of the same name)
+        CompletableFuture<String> verdict = usernameScreener.screen(name);
+        String mode = getConfig().getString("username-check.mode", "bounded-wait");
+        String offensiveReason = null;
+        try {
+            if ("blocking".equalsIgnoreCase(mode)) {
+                offensiveReason = verdict.get();
+            } else if ("optimistic".equalsIgnoreCase(mode)) {
+                offensiveReason = verdict.getNow(null);
+            } else {
+                offensiveReason = verdict.get(getConfig().getLong("username-check.max-wait-ms", 2000), TimeUnit.MILLISECONDS);
+            }
+        } catch (TimeoutException e) {
+            // Verdict still pending, handled below
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            getLogger().warning("[ATOX] Username check failed for " + name + ": " + e.getMessage());
+        }
+
+        if (offensiveReason == null) {
+            // No verdict yet: let the player in and kick them afterwards if the name gets flagged
+            UUID playerId = event.getUniqueId();
+            verdict.thenAccept(reason -> {
+                if (!reason.isEmpty()) kickFlaggedPlayer(playerId, name, reason);
+            });
+            getLogger().info("[ATOX] Username check pending, allowing for now: " + name);
+            return;
+        }
+
+        if (!offensiveReason.isEmpty()) {
+            event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER, usernameKickMessage(offensiveReason));
             getLogger().warning("[ATOX] Offensive username blocked (AI): " + name + " | Reason: " + offensiveReason);
             discordWebhook.sendUsernameBlock(name, offensiveReason);
         } else {
@@ -416,8 +710,38 @@ public class AntiToxicity extends JavaPlugin implements Listener {
         }
     }
 
+    /** Kicks a player whose name was flagged after they were already let in. */
+    private void kickFlaggedPlayer(UUID playerId, String name, String reason) {
+        if (!isEnabled()) return;
+        getServer().getScheduler().runTask(this, () -> {
+            Player player = getServer().getPlayer(playerId);
+            if (player == null) {
+                // Not joined yet (or already gone): onPlayerJoin checks the cache
+                return;
+            }
+            player.kickPlayer(usernameKickMessage(reason));
+            getLogger().warning("[ATOX] Offensive username kicked (AI): " + name + " | Reason: " + reason);
+            discordWebhook.sendUsernameBlock(name, reason);
+        });
+    }
+
+    private String usernameKickMessage(String reason) {
+        String kickMsg = getConfig().getString("username-check.kick-message",
+                "Your username is not allowed on this server.\nReason: {reason}");
+        return kickMsg.replace("{reason}", reason);
+    }
+
     @EventHandler
     public void onPlayerJoin(PlayerJoinEvent event) {
+        // A name flagged between pre-login and join (non-blocking username check)
+        if (usernameCache != null && getConfig().getBoolean("username-check.enabled", true)) {
+            String flagged = usernameCache.getCachedResult(event.getPlayer().getName());
+            if (flagged != null && !flagged.isEmpty()) {
+                event.getPlayer().kickPlayer(usernameKickMessage(flagged));
+                return;
+            }
+        }
+
         getServer().getScheduler().runTaskLater(this, () -> {
             event.getPlayer().sendMessage(colorize("&8&m                                                  "));
             event.getPlayer().sendMessage(colorize("&c&l⚠ PRIVACY NOTICE"));
@@ -0,0 +1,277 @@
+package com.antitoxicity;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous audit trail written as JSON lines. Callers only copy a few
+ * references into a fixed ring buffer; a single writer thread drains it into
+ * {@code audit.jsonl}, rolling over to numbered files once the current file
+ * reaches its size limit. Events below the configured level or lost to their
+ * sampling rate never enter the ring, and a full ring drops new events rather
+ * than block the chat thread.
+ */
+public class AuditLog {
+
+    public enum Level { DEBUG, INFO, WARN }
+
+    private static final int WRITE_CHUNK = 256;
+
+    private final Logger logger;
+    private final File directory;
+    private final Level minLevel;
+    private final Map<String, Double> sampleRates;
+    private final long maxFileBytes;
+    private final int maxFiles;
+
+    // Ring buffer, guarded by its own monitor
+    private final Object lock = new Object();
+    private final long[] times;
+    private final Level[] levels;
+    private final String[] events;
+    private final String[] players;
+    private final String[] details;
+    private int head;
+    private int size;
+    private long dropped;
+
+    private final Thread writer;
+    private volatile boolean running = true;
+    private BufferedWriter out;
+    private long fileBytes;
+
+    public AuditLog(File dataFolder, Logger logger, Level minLevel, Map<String, Double> sampleRates,
+                    int capacity, long maxFileBytes, int maxFiles) {
+        this.logger = logger;
+        this.directory = new File(dataFolder, "audit");
+        this.minLevel = minLevel;
+        this.sampleRates = sampleRates;
+        this.maxFileBytes = Math.max(64 * 1024, maxFileBytes);
+        this.maxFiles = Math.max(1, maxFiles);
+
+        int cap = Math.max(64, capacity);
+        this.times = new long[cap];
+        this.levels = new Level[cap];
+        this.events = new String[cap];
+        this.players = new String[cap];
+        this.details = new String[cap];
+
+        this.writer = new Thread(this::runLoop, "ATOX-Audit");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    /** Cheap pre-check so callers can skip building details for events that would be discarded. */
+    public boolean isEnabled(Level level) {
+        return level.compareTo(minLevel) >= 0;
+    }
+
+    /**
+     * Queues one event. {@code player} and {@code detail} may be null. Never
+     * blocks beyond a short critical section and never touches the disk.
+     */
+    public void record(Level level, String event, String player, String detail) {
+        if (!isEnabled(level)) return;
+        Double rate = sampleRates.get(event);
+        if (rate != null && rate < 1.0 && ThreadLocalRandom.current().nextDouble() >= rate) return;
+
+        long now = System.currentTimeMillis();
+        synchronized (lock) {
+            if (size == times.length) {
+                dropped++;
+                return;
+            }
+            int slot = (head + size) % times.length;
+            times[slot] = now;
+            levels[slot] = level;
+            events[slot] = event;
+            players[slot] = player;
+            details[slot] = detail;
+            if (size++ == 0) lock.notifyAll();
+        }
+    }
+
+    public long droppedCount() {
+        synchronized (lock) {
+            return dropped;
+        }
+    }
+
+    private void runLoop() {
+        long[] t = new long[WRITE_CHUNK];
+        Level[] l = new Level[WRITE_CHUNK];
+        String[] e = new String[WRITE_CHUNK];
+        String[] p = new String[WRITE_CHUNK];
+        String[] d = new String[WRITE_CHUNK];
+
+        while (true) {
+            int n;
+            synchronized (lock) {
+                while (size == 0 && running) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ex) {
+                        running = false;
+                    }
+                }
+                if (size == 0) break;
+                n = Math.min(size, WRITE_CHUNK);
+                for (int i = 0; i < n; i++) {
+                    int slot = (head + i) % times.length;
+                    t[i] = times[slot];
+                    l[i] = levels[slot];
+                    e[i] = events[slot];
+                    p[i] = players[slot];
+                    d[i] = details[slot];
+                    events[slot] = players[slot] = details[slot] = null;
+                }
+                head = (head + n) % times.length;
+                size -= n;
+            }
+
+            try {
+                for (int i = 0; i < n; i++) {
+                    writeLine(t[i], l[i], e[i], p[i], d[i]);
+                }
+                // Flush whenever the ring has been emptied, so a quiet server loses nothing on a crash
+                boolean idle;
+                synchronized (lock) {
+                    idle = size == 0;
+                }
+                if (idle && out != null) out.flush();
+            } catch (IOException ex) {
+                logger.warning("[ATOX] Failed to write audit log: " + ex.getMessage());
+                closeQuietly();
+            }
+        }
+        closeQuietly();
+    }
+
+    private void writeLine(long time, Level level, String event, String player, String detail) throws IOException {
+        StringBuilder sb = new StringBuilder(96);
+        try (JsonWriter json = new JsonWriter(new StringBuilderWriter(sb))) {
+            json.beginObject();
+            json.name("ts").value(time);
+            json.name("level").value(level.name());
+            json.name("event").value(event);
+            if (player != null) json.name("player").value(player);
+            if (detail != null) json.name("detail").value(detail);
+            json.endObject();
+        }
+        sb.append('\n');
+
+        int bytes = utf8Length(sb);
+        if (out == null || fileBytes + bytes > maxFileBytes) {
+            roll();
+        }
+        out.append(sb);
+        fileBytes += bytes;
+    }
+
+    /** Closes the current file, shifts audit.N.jsonl up by one and opens a fresh audit.jsonl. */
+    private void roll() throws IOException {
+        boolean full = out != null;
+        closeQuietly();
+        directory.mkdirs();
+        File current = new File(directory, "audit.jsonl");
+        // First open after a start appends to the previous file unless it is already full
+        if (full || current.length() >= maxFileBytes) {
+            shiftArchives(current);
+        }
+        fileBytes = current.length();
+        out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(current, true), StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    private void shiftArchives(File current) {
+        new File(directory, "audit." + maxFiles + ".jsonl").delete();
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            File from = new File(directory, "audit." + i + ".jsonl");
+            if (from.exists()) from.renameTo(new File(directory, "audit." + (i + 1) + ".jsonl"));
+        }
+        current.renameTo(new File(directory, "audit.1.jsonl"));
+    }
+
+    private void closeQuietly() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+        out = null;
+    }
+
+    private static int utf8Length(CharSequence s) {
+        int bytes = 0;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) bytes++;
+            else if (c < 0x800) bytes += 2;
+            else if (Character.isHighSurrogate(c)) { bytes += 4; i++; }
+            else bytes += 3;
+        }
+        return bytes;
+    }
+
+    /** Stops the writer after it has written and flushed everything already queued. */
+    public void shutdown() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        try {
+            writer.join(3000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long lost = droppedCount();
+        if (lost > 0) {
+            logger.warning("[ATOX] Audit log dropped " + lost + " event(s) because its buffer was full.");
+        }
+    }
+
+    /** Minimal Writer over a StringBuilder, so each line is built without a StringWriter's locking. */
+    private static final class StringBuilderWriter extends java.io.Writer {
+        private final StringBuilder sb;
+
+        StringBuilderWriter(StringBuilder sb) {
+            this.sb = sb;
+        }
+
+        @Override
+        public void write(char[] buf, int off, int len) {
+            sb.append(buf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            sb.append(str, off, off + len);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.antitoxicity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Splits a cycle's messages into shards that fit an input-token budget, sends
+ * the shards to Gemini concurrently and merges the sanctions back together.
+ * A failing shard is retried on its own; shards that already succeeded are
+ * never re-sent. A player always lives in exactly one shard, so a player is
+ * either analyzed or retained as a whole.
+ */
+public class BatchPlanner {
+
+    // Rough Gemini tokenizer ratio for chat text, plus per-line markup in the prompt
+    private static final int CHARS_PER_TOKEN = 4;
+    private static final int LINE_OVERHEAD_TOKENS = 4;
+
+    private final GeminiAnalyzer geminiAnalyzer;
+    private final Logger logger;
+    private final int tokenBudget;
+    private final int maxRetries;
+    private final long shardTimeoutMillis;
+    private final ExecutorService executor;
+
+    public BatchPlanner(GeminiAnalyzer geminiAnalyzer, Logger logger,
+                        int tokenBudget, int parallelRequests, int maxRetries, long shardTimeoutMillis) {
+        this.geminiAnalyzer = geminiAnalyzer;
+        this.logger = logger;
+        this.tokenBudget = Math.max(256, tokenBudget);
+        this.maxRetries = Math.max(0, maxRetries);
+        this.shardTimeoutMillis = Math.max(1000, shardTimeoutMillis);
+
+        int threads = Math.max(1, parallelRequests);
+        AtomicInteger threadId = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "ATOX-Gemini-" + threadId.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /** Sanctions from every shard that succeeded, plus the players whose shard kept failing. */
+    public static final class Result {
+        public final List<GeminiAnalyzer.Sanction> sanctions;
+        public final Set<String> failedPlayers;
+        public final int shardCount;
+
+        Result(List<GeminiAnalyzer.Sanction> sanctions, Set<String> failedPlayers, int shardCount) {
+            this.sanctions = sanctions;
+            this.failedPlayers = failedPlayers;
+            this.shardCount = shardCount;
+        }
+
+        /** True when not a single shard got an answer from the API. */
+        public boolean isTotalFailure(int totalPlayers) {
+            return failedPlayers.size() >= totalPlayers && totalPlayers > 0;
+        }
+    }
+
+    static final class Shard {
+        final Map<String, List<String>> messages = new LinkedHashMap<>();
+        final Map<String, List<String>> context = new LinkedHashMap<>();
+        int tokens;
+    }
+
+    public Result analyze(Map<String, List<String>> messagesByPlayer, Map<String, List<String>> contextMessages) {
+        return analyze(messagesByPlayer, contextMessages, null, Collections.emptySet());
+    }
+
+    /**
+     * Like {@link #analyze(Map, Map)}; {@code onSanction} is called from the
+     * worker threads for every sanction as soon as its shard's answer yields it.
+     * Shards containing any of {@code severePlayers} use hedged requests.
+     */
+    public Result analyze(Map<String, List<String>> messagesByPlayer, Map<String, List<String>> contextMessages,
+                          Consumer<GeminiAnalyzer.Sanction> onSanction, Set<String> severePlayers) {
+        List<Shard> pending = plan(messagesByPlayer, contextMessages);
+        int shardCount = pending.size();
+        if (shardCount > 1) {
+            logger.info("[ATOX] Split cycle into " + shardCount + " shard(s) of <= " + tokenBudget + " tokens.");
+        }
+
+        List<GeminiAnalyzer.Sanction> merged = new ArrayList<>();
+        for (int attempt = 0; attempt <= maxRetries && !pending.isEmpty(); attempt++) {
+            if (attempt > 0) {
+                logger.warning("[ATOX] Retrying " + pending.size() + " failed shard(s) (attempt "
+                        + (attempt + 1) + "/" + (maxRetries + 1) + ")...");
+                try {
+                    Thread.sleep(2000L * attempt);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            List<Future<List<GeminiAnalyzer.Sanction>>> futures = new ArrayList<>(pending.size());
+            try {
+                for (Shard shard : pending) {
+                    boolean hedge = !Collections.disjoint(shard.messages.keySet(), severePlayers);
+                    futures.add(executor.submit(() -> geminiAnalyzer.analyze(shard.messages, shard.context, onSanction, hedge)));
+                }
+            } catch (RejectedExecutionException e) {
+                // Shut down by a reload: what was not sent stays pending for the new planner
+                logger.info("[ATOX] Planner shut down, " + (pending.size() - futures.size()) + " shard(s) left for the next cycle.");
+            }
+
+            // Shards without a future were never sent; they fail like any other so their players stay pending
+            long deadline = System.currentTimeMillis() + shardTimeoutMillis;
+            List<Shard> failed = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i++) {
+                List<GeminiAnalyzer.Sanction> sanctions = i < futures.size() ? await(futures.get(i), deadline) : null;
+                if (sanctions == null) {
+                    failed.add(pending.get(i));
+                } else {
+                    merged.addAll(sanctions);
+                }
+            }
+            pending = failed;
+            if (executor.isShutdown()) break;
+        }
+
+        Set<String> failedPlayers = new LinkedHashSet<>();
+        for (Shard shard : pending) {
+            failedPlayers.addAll(shard.messages.keySet());
+        }
+        return new Result(merged, failedPlayers, shardCount);
+    }
+
+    /** The shard's sanctions, or null if it failed or is still running at {@code deadline} (it is then cancelled). */
+    private List<GeminiAnalyzer.Sanction> await(Future<List<GeminiAnalyzer.Sanction>> future, long deadline) {
+        try {
+            return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+        } catch (ExecutionException e) {
+            logger.severe("[ATOX] Shard analysis crashed: " + e.getCause());
+        } catch (TimeoutException e) {
+            logger.warning("[ATOX] Shard still running after " + (shardTimeoutMillis / 1000) + "s, cancelling it.");
+            future.cancel(true);
+        }
+        return null;
+    }
+
+    /**
+     * Packs players into shards in order. A player is never split: one whose
+     * messages alone exceed the budget gets a shard of their own, over budget
+     * (the ring capacity bounds it). Splitting would let one half succeed and
+     * the other fail, and retaining the player then re-sends the half whose
+     * sanctions were already applied.
+     */
+    List<Shard> plan(Map<String, List<String>> messagesByPlayer, Map<String, List<String>> contextMessages) {
+        List<Shard> shards = new ArrayList<>();
+        Shard current = new Shard();
+
+        for (Map.Entry<String, List<String>> entry : messagesByPlayer.entrySet()) {
+            String player = entry.getKey();
+            List<String> ctx = contextMessages != null ? contextMessages.get(player) : null;
+            int ctxTokens = estimateTokens(ctx);
+            int msgTokens = estimateTokens(entry.getValue());
+
+            if (!current.messages.isEmpty() && current.tokens + ctxTokens + msgTokens > tokenBudget) {
+                shards.add(current);
+                current = new Shard();
+            }
+
+            add(current, player, entry.getValue(), ctx, ctxTokens + msgTokens);
+        }
+
+        if (!current.messages.isEmpty()) {
+            shards.add(current);
+        }
+        return shards;
+    }
+
+    private void add(Shard shard, String player, List<String> msgs, List<String> ctx, int tokens) {
+        shard.messages.put(player, msgs);
+        if (ctx != null && !ctx.isEmpty()) {
+            shard.context.put(player, ctx);
+        }
+        shard.tokens += tokens;
+    }
+
+    static int estimateTokens(List<String> msgs) {
+        if (msgs == null) return 0;
+        int tokens = 0;
+        for (String msg : msgs) tokens += estimateTokens(msg);
+        return tokens;
+    }
+
+    static int estimateTokens(String msg) {
+        return msg.length() / CHARS_PER_TOKEN + LINE_OVERHEAD_TOKENS;
+    }
+
+    /**
+     * Stops taking new shards without interrupting the ones in flight. Waits up
+     * to {@code timeoutMillis} for them (0 = don't wait, they finish in the
+     * background) and only interrupts what is still running after that; an
+     * interrupted cycle commits nothing, so its messages stay pending.
+     */
+    public void shutdown(long timeoutMillis) {
+        executor.shutdown();
+        if (timeoutMillis <= 0) return;
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                logger.warning("[ATOX] Gemini requests still running after " + timeoutMillis + "ms, abandoning them.");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,575 @@
+package com.antitoxicity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+/**
+ * In-memory chat journal. Every player gets a fixed-size ring buffer and every
+ * message is stamped with a global sequence number, so an append is O(1) and
+ * never copies the rest of the history.
+ *
+ * Analysis consumes messages through a cursor: a cycle snapshots the range
+ * {@code [cursor, head)} and commits exactly that range once the API call
+ * succeeded. Messages stored while the call is in flight stay pending.
+ * Players whose part of a batch could not be analyzed keep their range
+ * retained even though the global cursor moves on.
+ *
+ * Rings are indexed by the lower-cased player name, so lookups are
+ * case-insensitive without comparing names message by message.
+ *
+ * The pending backlog is capped: when it grows past the limits (typically
+ * during an API outage) the lowest-priority pending messages are shed, which
+ * leaves an empty slot (tombstone) in their ring.
+ *
+ * With a {@link ChatJournalStore} attached, appends and commits are also
+ * queued to disk, and the journal can be rebuilt from it after a restart.
+ */
+public class ChatJournal {
+
+    private final Map<String, PlayerRing> rings = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong(0);
+    private final AtomicLong cursor = new AtomicLong(0);
+    private final AtomicInteger size = new AtomicInteger(0);
+    // Characters of live pending messages: added on append, released when consumed, shed or purged
+    private final AtomicLong pendingChars = new AtomicLong(0);
+    // Live pending messages, with the same bookkeeping; tombstones and consumed ranges never count
+    private final AtomicLong pendingMessages = new AtomicLong(0);
+    private final AtomicLong shedTotal = new AtomicLong(0);
+    private final int capacityPerPlayer;
+    private volatile ChatJournalStore store;
+
+    public ChatJournal(int capacityPerPlayer) {
+        this.capacityPerPlayer = Math.max(1, capacityPerPlayer);
+    }
+
+    /** Logs every append and commit from now on. */
+    public void setStore(ChatJournalStore store) {
+        this.store = store;
+    }
+
+    /** Appends a message and returns its sequence number. */
+    public long append(String playerName, String message, long timestamp) {
+        String key = key(playerName);
+        while (true) {
+            PlayerRing ring = rings.get(key);
+            if (ring == null) {
+                ring = rings.computeIfAbsent(key, k -> new PlayerRing(k, playerName, capacityPerPlayer));
+            }
+            synchronized (ring) {
+                if (ring.retired) continue; // purged concurrently, pick up the new ring
+                long seq = sequence.getAndIncrement();
+                evictOldestIfFull(ring);
+                if (ring.add(seq, message, timestamp)) {
+                    size.incrementAndGet();
+                }
+                pendingChars.addAndGet(message.length());
+                pendingMessages.incrementAndGet();
+                // Queued under the ring lock so one player's records reach the log in sequence order
+                ChatJournalStore log = store;
+                if (log != null) log.logAppend(seq, playerName, message, timestamp);
+                return seq;
+            }
+        }
+    }
+
+    /** Re-inserts a logged message with its original sequence number. Used only while replaying. */
+    void restoreAppend(long seq, String playerName, String message, long timestamp) {
+        String key = key(playerName);
+        PlayerRing ring = rings.computeIfAbsent(key, k -> new PlayerRing(k, playerName, capacityPerPlayer));
+        synchronized (ring) {
+            if (ring.count > 0 && ring.seqAt(ring.count - 1) >= seq) return;
+            evictOldestIfFull(ring);
+            if (ring.add(seq, message, timestamp)) {
+                size.incrementAndGet();
+            }
+            pendingChars.addAndGet(message.length());
+            pendingMessages.incrementAndGet();
+        }
+        sequence.accumulateAndGet(seq + 1, Math::max);
+    }
+
+    /** Restores the cursor, head and retained starts written at a log checkpoint. Used only while replaying. */
+    void restoreCheckpoint(long head, long cursorSeq, Map<String, Long> retained) {
+        sequence.accumulateAndGet(head, Math::max);
+        cursor.accumulateAndGet(cursorSeq, Math::max);
+        long chars = 0;
+        long messages = 0;
+        for (PlayerRing ring : rings.values()) {
+            synchronized (ring) {
+                Long from = retained.get(ring.playerName);
+                ring.retainFrom = from != null ? from : -1;
+                for (int i = ring.firstIndexAtOrAfter(pendingStart(ring, cursor.get())); i < ring.count; i++) {
+                    String msg = ring.messageAt(i);
+                    if (msg == null) continue;
+                    chars += msg.length();
+                    messages++;
+                }
+            }
+        }
+        // Replay only: the pending set was redefined, so count it again
+        pendingChars.set(chars);
+        pendingMessages.set(messages);
+    }
+
+    /** Cursor, head and every retained player's start, for a log checkpoint. */
+    Checkpoint checkpoint() {
+        Map<String, Long> retained = new HashMap<>();
+        long cursorSeq = cursor.get();
+        for (PlayerRing ring : rings.values()) {
+            synchronized (ring) {
+                if (ring.retainFrom >= 0) retained.put(ring.playerName, ring.retainFrom);
+            }
+        }
+        return new Checkpoint(sequence.get(), cursorSeq, retained);
+    }
+
+    /** Receives one pending message; see {@link #forEachPending}. */
+    interface PendingVisitor {
+        void accept(long seq, String playerName, String message, long timestamp);
+    }
+
+    /** Visits every live pending message, retained ones included, one player at a time in sequence order. */
+    void forEachPending(PendingVisitor visitor) {
+        long from = cursor.get();
+        for (PlayerRing ring : rings.values()) {
+            synchronized (ring) {
+                for (int i = ring.firstIndexAtOrAfter(pendingStart(ring, from)); i < ring.count; i++) {
+                    String msg = ring.messageAt(i);
+                    if (msg != null) visitor.accept(ring.seqAt(i), ring.playerName, msg, ring.timestampAt(i));
+                }
+            }
+        }
+    }
+
+    /** Sequence below which every message is consumed: the cursor, or the oldest retained start. */
+    long lowWaterMark() {
+        long low = cursor.get();
+        for (PlayerRing ring : rings.values()) {
+            synchronized (ring) {
+                if (ring.retainFrom >= 0) low = Math.min(low, ring.retainFrom);
+            }
+        }
+        return low;
+    }
+
+    /** Sequence number the next appended message will get. */
+    public long head() {
+        return sequence.get();
+    }
+
+
+    /** Characters of the messages still pending analysis. */
+    public long pendingChars() {
+        return pendingChars.get();
+    }
+
+    /** Sequence number of the first message not yet consumed by analysis. */
+    public long cursor() {
+        return cursor.get();
+    }
+
+    /** Number of live messages awaiting analysis, retained players' included and shed ones excluded. */
+    public long pending() {
+        return pendingMessages.get();
+    }
+
+    /**
+     * Snapshots every pending message, i.e. the range {@code [cursor, head)},
+     * grouped by player in arrival order. Each ring only copies its pending tail.
+     */
+    public Batch snapshot() {
+        return snapshot(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Snapshots at most the {@code maxMessages} oldest pending messages. The
+     * batch then ends at the first sequence left out, so committing it moves
+     * the cursor exactly past what was sent and the rest is drained next time.
+     */
+    public Batch snapshot(int maxMessages) {
+        long from = cursor.get();
+        long head = sequence.get();
+        long to = maxMessages < Integer.MAX_VALUE ? drainBoundary(from, head, maxMessages) : head;
+        Map<String, List<String>> result = new LinkedHashMap<>();
+        Map<String, Long> starts = new HashMap<>();
+        int total = 0;
+        for (PlayerRing ring : rings.values()) {
+            synchronized (ring) {
+                long start = pendingStart(ring, from);
+                if (start >= to || ring.count == 0 || ring.seqAt(ring.count - 1) < start) continue;
+                int end = ring.firstIndexAtOrAfter(to);
+                int begin = ring.firstIndexAtOrAfter(start);
+                if (begin == end) continue;
+                List<String> msgs = new ArrayList<>(end - begin);
+                for (int i = begin; i < end; i++) {
+                    String msg = ring.messageAt(i);
+                    if (msg != null) msgs.add(msg);
+                }
+                if (msgs.isEmpty()) continue;
+                result.put(ring.playerName, msgs);
+                starts.put(ring.playerName, start);
+                total += msgs.size();
+            }
+        }
+        return new Batch(from, to, result, starts, total, to < head);
+    }
+
+    /** First pending message of a ring: its retained start if it has one, otherwise the cursor. */
+    private static long pendingStart(PlayerRing ring, long cursor) {
+        return ring.retainFrom >= 0 ? Math.min(ring.retainFrom, cursor) : cursor;
+    }
+
+    /** Sequence at which a batch of the oldest {@code maxMessages} pending messages ends. */
+    private long drainBoundary(long from, long to, int maxMessages) {
+        long[] seqs = new long[64];
+        int n = 0;
+        for (PlayerRing ring : rings.values()) {
+            synchronized (ring) {
+                int end = ring.firstIndexAtOrAfter(to);
+                for (int i = ring.firstIndexAtOrAfter(pendingStart(ring, from)); i < end; i++) {
+                    if (ring.messageAt(i) == null) continue;
+                    if (n == seqs.length) seqs = Arrays.copyOf(seqs, n * 2);
+                    seqs[n++] = ring.seqAt(i);
+                }
+            }
+        }
+        if (n <= maxMessages) return to;
+        Arrays.sort(seqs, 0, n);
+        return seqs[Math.max(1, maxMessages)];
+    }
+
+    /** A pending message considered for shedding. */
+    private static final class PendingEntry {
+        final PlayerRing ring;
+        final long seq;
+        final int score;
+        final int recency; // 0 = the player's newest pending message
+        final int chars;
+
+        PendingEntry(PlayerRing ring, long seq, int score, int recency, int chars) {
+            this.ring = ring;
+            this.seq = seq;
+            this.score = score;
+            this.recency = recency;
+            this.chars = chars;
+        }
+    }
+
+    private static final Comparator<PendingEntry> KEEP_FIRST = Comparator
+            .comparingInt((PendingEntry e) -> -e.score)
+            .thenComparingInt(e -> e.recency)
+            .thenComparingLong(e -> -e.seq);
+
+    /**
+     * Sheds pending messages until at most {@code maxMessages} messages and
+     * {@code maxChars} characters remain. Messages are kept by descending
+     * {@code scorer} value, then by per-player recency (every player's newest
+     * message before anyone's second newest), so the suspicious and the latest
+     * lines survive. Returns the number of messages shed.
+     */
+    public int enforceCap(int maxMessages, long maxChars, ToIntFunction<String> scorer) {
+        if (pending() <= maxMessages && pendingChars.get() <= maxChars) {
+            return 0; // cannot be over either cap
+        }
+
+        long from = cursor.get();
+        long to = sequence.get();
+        List<PendingEntry> entries = new ArrayList<>();
+        long totalChars = 0;
+        for (PlayerRing ring : rings.values()) {
+            synchronized (ring) {
+                int begin = ring.firstIndexAtOrAfter(pendingStart(ring, from));
+                int recency = 0;
+                for (int i = ring.firstIndexAtOrAfter(to) - 1; i >= begin; i--) {
+                    String msg = ring.messageAt(i);
+                    if (msg == null) continue;
+                    entries.add(new PendingEntry(ring, ring.seqAt(i), scorer.applyAsInt(msg), recency++, msg.length()));
+                    totalChars += msg.length();
+                }
+            }
+        }
+        if (entries.size() <= maxMessages && totalChars <= maxChars) {
+            return 0;
+        }
+
+        entries.sort(KEEP_FIRST);
+        int kept = 0;
+        long keptChars = 0;
+        int shed = 0;
+        for (PendingEntry e : entries) {
+            if (kept < maxMessages && keptChars + e.chars <= maxChars) {
+                kept++;
+                keptChars += e.chars;
+                continue;
+            }
+            synchronized (e.ring) {
+                int i = e.ring.firstIndexAtOrAfter(e.seq);
+                if (i < e.ring.count && e.ring.seqAt(i) == e.seq && e.ring.messageAt(i) != null) {
+                    release(e.ring, e.seq, e.ring.messageAt(i));
+                    e.ring.tombstone(i);
+                    size.decrementAndGet();
+                    shed++;
+                }
+            }
+        }
+        shedTotal.addAndGet(shed);
+        return shed;
+    }
+
+    /** Messages shed by {@link #enforceCap} since startup. */
+    public long shedTotal() {
+        return shedTotal.get();
+    }
+
+    /** Marks the batch's range as consumed. Committing an older batch never moves the cursor back. */
+    public void commit(Batch batch) {
+        commit(batch, Collections.emptySet());
+    }
+
+    /**
+     * Marks the batch's range as consumed for every player except
+     * {@code retainedPlayers}, whose messages stay pending for the next batch.
+     */
+    public void commit(Batch batch, Set<String> retainedPlayers) {
+        applyCommit(batch.toSeq, batch.starts, retainedPlayers);
+        ChatJournalStore log = store;
+        if (log != null) log.logCommit(batch.toSeq, batch.starts, retainedPlayers);
+    }
+
+    /** Applies a commit of the range ending at {@code toSeq}; also used when replaying the log. */
+    void applyCommit(long toSeq, Map<String, Long> starts, Set<String> retainedPlayers) {
+        // Move the cursor first: from here on a shed or purge of the range no longer counts it as pending
+        long oldCursor = cursor.getAndAccumulate(toSeq, Math::max);
+        long newCursor = Math.max(oldCursor, toSeq);
+        for (Map.Entry<String, Long> entry : starts.entrySet()) {
+            PlayerRing ring = rings.get(key(entry.getKey()));
+            if (ring == null) continue;
+            long start = entry.getValue();
+            synchronized (ring) {
+                long before = pendingStart(ring, oldCursor);
+                if (retainedPlayers.contains(entry.getKey())) {
+                    if (ring.retainFrom < 0 || start < ring.retainFrom) ring.retainFrom = start;
+                } else if (ring.retainFrom >= start) {
+                    ring.retainFrom = -1;
+                }
+                long after = pendingStart(ring, newCursor);
+                if (after > before) {
+                    releaseRange(ring, before, after);
+                }
+            }
+        }
+    }
+
+    /** Takes a ring's live messages with a sequence in {@code [from, to)} out of the pending totals. Caller holds the ring lock. */
+    private void releaseRange(PlayerRing ring, long from, long to) {
+        long chars = 0;
+        int messages = 0;
+        int end = ring.firstIndexAtOrAfter(to);
+        for (int i = ring.firstIndexAtOrAfter(from); i < end; i++) {
+            String msg = ring.messageAt(i);
+            if (msg == null) continue;
+            chars += msg.length();
+            messages++;
+        }
+        pendingChars.addAndGet(-chars);
+        pendingMessages.addAndGet(-messages);
+    }
+
+    /** Takes a message leaving the ring out of the pending total if it was still pending. Caller holds the ring lock. */
+    private void release(PlayerRing ring, long seq, String message) {
+        if (message != null && seq >= pendingStart(ring, cursor.get())) {
+            pendingChars.addAndGet(-message.length());
+            pendingMessages.decrementAndGet();
+        }
+    }
+
+    /** Releases the message a full ring is about to overwrite. Caller holds the ring lock. */
+    private void evictOldestIfFull(PlayerRing ring) {
+        if (ring.count == capacityPerPlayer) {
+            release(ring, ring.seqAt(0), ring.messageAt(0));
+        }
+    }
+
+    /**
+     * The last {@code max} already-consumed messages of a player. The consumed
+     * boundary is found by binary search, so the cost is O(log capacity + max)
+     * no matter how many messages are stored or pending.
+     */
+    public List<String> recentConsumed(String playerName, int max) {
+        PlayerRing ring = rings.get(key(playerName));
+        if (ring == null || max <= 0) return new ArrayList<>();
+        long consumed = cursor.get();
+        synchronized (ring) {
+            if (ring.retainFrom >= 0) consumed = Math.min(consumed, ring.retainFrom);
+            int end = ring.firstIndexAtOrAfter(consumed);
+            int from = end;
+            int found = 0;
+            while (from > 0 && found < max) {
+                if (ring.messageAt(--from) != null) found++;
+            }
+            List<String> msgs = new ArrayList<>(found);
+            for (int i = from; i < end; i++) {
+                String msg = ring.messageAt(i);
+                if (msg != null) msgs.add(msg);
+            }
+            return msgs;
+        }
+    }
+
+    /** Drops messages older than the cutoff and forgets players with nothing left. Returns the number dropped. */
+    public int purgeOlderThan(long cutoff) {
+        int dropped = 0;
+        for (PlayerRing ring : rings.values()) {
+            synchronized (ring) {
+                while (ring.count > 0 && ring.timestampAt(0) < cutoff) {
+                    release(ring, ring.seqAt(0), ring.messageAt(0));
+                    if (ring.dropOldest()) dropped++;
+                }
+                if (ring.count == 0) {
+                    ring.retired = true;
+                    rings.remove(ring.key, ring);
+                }
+            }
+        }
+        size.addAndGet(-dropped);
+        return dropped;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public int playerCount() {
+        return rings.size();
+    }
+
+    static String key(String playerName) {
+        return playerName.toLowerCase(Locale.ROOT);
+    }
+
+    /** Journal position written at the head of every log segment. */
+    static final class Checkpoint {
+        final long head;
+        final long cursor;
+        final Map<String, Long> retained;
+
+        Checkpoint(long head, long cursor, Map<String, Long> retained) {
+            this.head = head;
+            this.cursor = cursor;
+            this.retained = retained;
+        }
+    }
+
+    /** A snapshot of pending messages covering the sequence range {@code [fromSeq, toSeq)}. */
+    public static final class Batch {
+        public final long fromSeq;
+        public final long toSeq;
+        public final Map<String, List<String>> messages;
+        public final int messageCount;
+        /** True if pending messages past {@code toSeq} were left for a later batch. */
+        public final boolean partial;
+        // Per-player first sequence included, lower than fromSeq for retained players
+        final Map<String, Long> starts;
+
+        Batch(long fromSeq, long toSeq, Map<String, List<String>> messages,
+              Map<String, Long> starts, int messageCount, boolean partial) {
+            this.fromSeq = fromSeq;
+            this.toSeq = toSeq;
+            this.messages = messages;
+            this.starts = starts;
+            this.messageCount = messageCount;
+            this.partial = partial;
+        }
+
+        public boolean isEmpty() {
+            return messages.isEmpty();
+        }
+    }
+
+    /**
+     * Fixed-capacity ring of one player's messages, oldest first. Slots are
+     * preallocated, so a full ring overwrites its oldest message in place.
+     * All access is guarded by the ring's monitor.
+     */
+    static final class PlayerRing {
+        final String key;
+        final String playerName;
+        private final long[] seqs;
+        private final long[] timestamps;
+        private final String[] messages;
+        private int start;
+        int count;
+        long retainFrom = -1;
+        boolean retired;
+
+        PlayerRing(String key, String playerName, int capacity) {
+            this.key = key;
+            this.playerName = playerName;
+            this.seqs = new long[capacity];
+            this.timestamps = new long[capacity];
+            this.messages = new String[capacity];
+        }
+
+        /** Returns false when a live oldest message had to be overwritten. */
+        boolean add(long seq, String message, long timestamp) {
+            int slot = (start + count) % messages.length;
+            boolean overwritesLive = count == messages.length && messages[slot] != null;
+            seqs[slot] = seq;
+            timestamps[slot] = timestamp;
+            messages[slot] = message;
+            if (count < messages.length) {
+                count++;
+                return true;
+            }
+            start = (start + 1) % messages.length;
+            return !overwritesLive;
+        }
+
+        /** Returns false if the dropped slot was already a tombstone. */
+        boolean dropOldest() {
+            boolean live = messages[start] != null;
+            messages[start] = null;
+            start = (start + 1) % messages.length;
+            count--;
+            return live;
+        }
+
+        /** Sheds a message but keeps its slot, so sequence order and indexes stay intact. */
+        void tombstone(int index) {
+            messages[slot(index)] = null;
+        }
+
+        /** Index of the first message whose sequence is at least {@code seq}; seqs are ascending. */
+        int firstIndexAtOrAfter(long seq) {
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (seqAt(mid) < seq) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        private int slot(int index) {
+            return (start + index) % messages.length;
+        }
+
+        long seqAt(int index) { return seqs[slot(index)]; }
+        long timestampAt(int index) { return timestamps[slot(index)]; }
+        /** The message at an index, or null if it was shed. */
+        String messageAt(int index) { return messages[slot(index)]; }
+    }
+}
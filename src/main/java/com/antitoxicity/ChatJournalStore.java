@@ -0,0 +1,441 @@
+package com.antitoxicity;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the {@link ChatJournal}, so pending chat survives a
+ * restart or crash. Chat threads only queue a small record; one writer thread
+ * appends everything queued since its last pass as CRC-framed records and
+ * syncs at most once per interval. Segments roll by size and every segment
+ * starts with a checkpoint of the cursor and retained players, so a segment
+ * whose messages are all consumed and older than the purge age can simply be
+ * deleted. On start the segments are replayed in order into an empty journal.
+ *
+ * A failed write is retried in a fresh segment. If the disk stalls long enough
+ * for the queue to fill, the queued records are replaced by a single resync:
+ * once the disk is back, every pending message is logged again followed by a
+ * checkpoint, which covers every commit that was queued.
+ */
+public class ChatJournalStore {
+
+    private static final byte OP_APPEND = 1;
+    private static final byte OP_COMMIT = 2;
+    private static final byte OP_CHECKPOINT = 3;
+    private static final int MAX_RECORD_BYTES = 1 << 20;
+    private static final int MAX_QUEUED = 65536;
+    private static final long RETRY_DELAY_MILLIS = 5000;
+
+    /** One queued log record; only the fields of its op are set. */
+    private static final class Op {
+        final byte type;
+        final long seq;
+        final long timestamp;
+        final String player;
+        final String message;
+        final Map<String, Long> starts;
+        final Set<String> retained;
+
+        Op(byte type, long seq, long timestamp, String player, String message,
+           Map<String, Long> starts, Set<String> retained) {
+            this.type = type;
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.player = player;
+            this.message = message;
+            this.starts = starts;
+            this.retained = retained;
+        }
+    }
+
+    // Queue marker: log the journal's whole pending state instead of the records it replaced
+    private static final Op RESYNC = new Op((byte) 0, 0, 0, null, null, null, null);
+
+    /** Bounds of a closed segment, to decide when it can be deleted. */
+    private static final class SegmentInfo {
+        final long number;
+        long lastSeq = -1;
+        long newestTimestamp;
+
+        SegmentInfo(long number) {
+            this.number = number;
+        }
+    }
+
+    private final File directory;
+    private final Logger logger;
+    private final long syncIntervalMillis;
+    private final long segmentBytes;
+    private final long maxAgeMillis;
+
+    private final Deque<Op> queue = new ArrayDeque<>();
+    private final List<SegmentInfo> closedSegments = new ArrayList<>();
+    private ChatJournal journal;
+    private Thread writer;
+    private volatile boolean running = true;
+    private long resyncs;
+
+    // Writer thread state
+    private FileChannel segment;
+    private SegmentInfo current;
+    private long segmentSize;
+    private long nextSegment;
+
+    public ChatJournalStore(File dataFolder, Logger logger, long syncIntervalMillis, long segmentBytes, long maxAgeMillis) {
+        this.directory = new File(dataFolder, "chat");
+        this.logger = logger;
+        this.syncIntervalMillis = Math.max(0, syncIntervalMillis);
+        this.segmentBytes = Math.max(64 * 1024, segmentBytes);
+        this.maxAgeMillis = maxAgeMillis;
+        directory.mkdirs();
+    }
+
+    /**
+     * Replays every segment into {@code journal} (which must be empty), then
+     * starts logging its appends and commits. Messages older than the purge
+     * age are skipped.
+     */
+    public void open(ChatJournal journal) {
+        long start = System.currentTimeMillis();
+        long cutoff = start - maxAgeMillis;
+        int replayed = 0;
+        long[] numbers = segmentNumbers();
+        for (long n : numbers) {
+            SegmentInfo info = new SegmentInfo(n);
+            replayed += replay(segmentFile(n), journal, info, cutoff);
+            closedSegments.add(info);
+        }
+        // Never append behind a tail that a crash may have torn
+        nextSegment = numbers.length == 0 ? 0 : numbers[numbers.length - 1] + 1;
+        if (numbers.length > 0) {
+            logger.info("[ATOX] Replayed " + replayed + " chat message(s) from disk, " + journal.pending()
+                    + " pending analysis (" + (System.currentTimeMillis() - start) + "ms)");
+        }
+
+        this.journal = journal;
+        journal.setStore(this);
+        this.writer = new Thread(this::runLoop, "ATOX-ChatJournal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /** Queues an appended message. Called under the player's ring lock; never touches the disk. */
+    void logAppend(long seq, String player, String message, long timestamp) {
+        enqueue(new Op(OP_APPEND, seq, timestamp, player, message, null, null));
+    }
+
+    void logCommit(long toSeq, Map<String, Long> starts, Set<String> retained) {
+        enqueue(new Op(OP_COMMIT, toSeq, 0, null, null, new HashMap<>(starts), new HashSet<>(retained)));
+    }
+
+    private void enqueue(Op op) {
+        synchronized (queue) {
+            if (queue.size() >= MAX_QUEUED) {
+                // Disk stalled: keep memory bounded. The journal itself still has everything, and the
+                // resync logs its current state, so no commit (or pending message) is lost.
+                queue.clear();
+                queue.addLast(RESYNC);
+                if (resyncs++ % 100 == 0) {
+                    logger.warning("[ATOX] Chat journal writer is behind, replaced " + MAX_QUEUED
+                            + " queued record(s) with a resync of the journal");
+                }
+            }
+            queue.addLast(op);
+            if (queue.size() == 1) queue.notifyAll();
+        }
+    }
+
+    private void runLoop() {
+        List<Op> batch = new ArrayList<>();
+        long lastSync = 0;
+        while (true) {
+            synchronized (queue) {
+                while (queue.isEmpty() && running) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+                if (queue.isEmpty()) break;
+            }
+            // Batch appends: at most one write and one sync per interval
+            long wait = lastSync + syncIntervalMillis - System.currentTimeMillis();
+            if (wait > 0 && running) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+            }
+            synchronized (queue) {
+                batch.addAll(queue);
+                queue.clear();
+            }
+            try {
+                writeBatch(batch);
+                batch.clear();
+            } catch (IOException e) {
+                logger.severe("[ATOX] Failed to write chat journal, will retry: " + e.getMessage());
+                // The failed write may have left a partial record; the retry opens a fresh segment
+                closeSegment();
+                synchronized (queue) {
+                    for (int i = batch.size() - 1; i >= 0; i--) queue.addFirst(batch.get(i));
+                }
+                batch.clear();
+                if (!running) break;
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+            lastSync = System.currentTimeMillis();
+        }
+        closeSegment();
+    }
+
+    private void writeBatch(List<Op> batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128 * batch.size() + 256);
+        Framer framer = new Framer(bytes);
+        if (segment == null) {
+            openSegment(framer);
+        }
+        for (Op op : batch) {
+            if (op == RESYNC) {
+                // Appends first, so the checkpoint's retained starts find their players' rings on replay
+                List<Op> pending = new ArrayList<>();
+                journal.forEachPending((seq, player, message, timestamp) ->
+                        pending.add(new Op(OP_APPEND, seq, timestamp, player, message, null, null)));
+                for (Op append : pending) write(framer, append);
+                framer.writeCheckpoint(journal.checkpoint());
+                logger.info("[ATOX] Chat journal resynced: " + pending.size() + " pending message(s) logged again");
+            } else {
+                write(framer, op);
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) segment.write(buffer);
+        segment.force(false);
+        segmentSize += bytes.size();
+
+        if (segmentSize >= segmentBytes) {
+            closeSegment();
+            deleteConsumedSegments();
+        }
+    }
+
+    private void write(Framer framer, Op op) throws IOException {
+        framer.write(op);
+        if (op.type == OP_APPEND) {
+            current.lastSeq = Math.max(current.lastSeq, op.seq);
+            current.newestTimestamp = Math.max(current.newestTimestamp, op.timestamp);
+        }
+    }
+
+    private void openSegment(Framer framer) throws IOException {
+        current = new SegmentInfo(nextSegment++);
+        segment = FileChannel.open(segmentFile(current.number).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        segmentSize = 0;
+        // A segment must be replayable without the ones before it
+        ChatJournal.Checkpoint checkpoint = journal.checkpoint();
+        framer.writeCheckpoint(checkpoint);
+    }
+
+    /** Deletes the oldest segments once all their messages are consumed and past the purge age. */
+    private void deleteConsumedSegments() {
+        long lowWater = journal.lowWaterMark();
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        int deleted = 0;
+        while (!closedSegments.isEmpty()) {
+            SegmentInfo oldest = closedSegments.get(0);
+            if (oldest.lastSeq >= lowWater || oldest.newestTimestamp >= cutoff) break;
+            segmentFile(oldest.number).delete();
+            closedSegments.remove(0);
+            deleted++;
+        }
+        if (deleted > 0) {
+            logger.info("[ATOX] Removed " + deleted + " consumed chat journal segment(s)");
+        }
+    }
+
+    private int replay(File file, ChatJournal journal, SegmentInfo info, long cutoff) {
+        int appended = 0;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int checksum = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_BYTES) throw new IOException("bad record length " + length);
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) throw new IOException("checksum mismatch");
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte type = record.readByte();
+                if (type == OP_APPEND) {
+                    long seq = record.readLong();
+                    long timestamp = record.readLong();
+                    String player = record.readUTF();
+                    String message = record.readUTF();
+                    info.lastSeq = Math.max(info.lastSeq, seq);
+                    info.newestTimestamp = Math.max(info.newestTimestamp, timestamp);
+                    if (timestamp >= cutoff) {
+                        journal.restoreAppend(seq, player, message, timestamp);
+                        appended++;
+                    }
+                } else if (type == OP_COMMIT) {
+                    long toSeq = record.readLong();
+                    int n = record.readInt();
+                    Map<String, Long> starts = new HashMap<>();
+                    Set<String> retained = new HashSet<>();
+                    for (int i = 0; i < n; i++) {
+                        String player = record.readUTF();
+                        starts.put(player, record.readLong());
+                        if (record.readBoolean()) retained.add(player);
+                    }
+                    journal.applyCommit(toSeq, starts, retained);
+                } else if (type == OP_CHECKPOINT) {
+                    long head = record.readLong();
+                    long cursor = record.readLong();
+                    int n = record.readInt();
+                    Map<String, Long> retained = new HashMap<>();
+                    for (int i = 0; i < n; i++) {
+                        retained.put(record.readUTF(), record.readLong());
+                    }
+                    journal.restoreCheckpoint(head, cursor, retained);
+                }
+            }
+        } catch (EOFException e) {
+            logger.warning("[ATOX] Chat journal " + file.getName() + " ends in a torn record, ignoring it");
+        } catch (IOException e) {
+            logger.warning("[ATOX] Chat journal " + file.getName() + " is damaged after " + appended
+                    + " message(s): " + e.getMessage());
+        }
+        return appended;
+    }
+
+    /** Serializes records as {@code [length][crc32][payload]}. */
+    private static final class Framer {
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+        private final DataOutputStream body = new DataOutputStream(payload);
+        private final CRC32 crc = new CRC32();
+
+        Framer(OutputStream out) {
+            this.out = new DataOutputStream(out);
+        }
+
+        void write(Op op) throws IOException {
+            payload.reset();
+            body.writeByte(op.type);
+            body.writeLong(op.seq);
+            if (op.type == OP_APPEND) {
+                body.writeLong(op.timestamp);
+                body.writeUTF(op.player);
+                body.writeUTF(op.message);
+            } else {
+                body.writeInt(op.starts.size());
+                for (Map.Entry<String, Long> e : op.starts.entrySet()) {
+                    body.writeUTF(e.getKey());
+                    body.writeLong(e.getValue());
+                    body.writeBoolean(op.retained.contains(e.getKey()));
+                }
+            }
+            frame();
+        }
+
+        void writeCheckpoint(ChatJournal.Checkpoint checkpoint) throws IOException {
+            payload.reset();
+            body.writeByte(OP_CHECKPOINT);
+            body.writeLong(checkpoint.head);
+            body.writeLong(checkpoint.cursor);
+            body.writeInt(checkpoint.retained.size());
+            for (Map.Entry<String, Long> e : checkpoint.retained.entrySet()) {
+                body.writeUTF(e.getKey());
+                body.writeLong(e.getValue());
+            }
+            frame();
+        }
+
+        private void frame() throws IOException {
+            byte[] bytes = payload.toByteArray();
+            crc.reset();
+            crc.update(bytes);
+            out.writeInt(bytes.length);
+            out.writeInt((int) crc.getValue());
+            out.write(bytes);
+        }
+    }
+
+    private File segmentFile(long n) {
+        return new File(directory, String.format("chat-%08d.log", n));
+    }
+
+    private long[] segmentNumbers() {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("chat-") && name.endsWith(".log"));
+        if (files == null) return new long[0];
+        long[] numbers = new long[files.length];
+        int count = 0;
+        for (File f : files) {
+            try {
+                numbers[count] = Long.parseLong(f.getName().substring(5, f.getName().length() - 4));
+                count++;
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        long[] result = Arrays.copyOf(numbers, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private void closeSegment() {
+        if (segment == null) return;
+        try {
+            segment.close();
+        } catch (IOException ignored) {
+        }
+        segment = null;
+        if (current != null) {
+            closedSegments.add(current);
+            current = null;
+        }
+    }
+
+    /** Writes and syncs everything still queued, then stops the writer. */
+    public void shutdown() {
+        if (journal != null) journal.setStore(null);
+        synchronized (queue) {
+            running = false;
+            queue.notifyAll();
+        }
+        if (writer == null) return;
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
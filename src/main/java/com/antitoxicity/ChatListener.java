@@ -6,9 +6,9 @@ import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.AsyncPlayerChatEvent;
 
-import java.lang.reflect.Method;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.logging.Logger;
 
 /**
@@ -20,9 +20,9 @@ public class ChatListener implements Listener {
     private final AntiToxicity plugin;
     private final Logger logger;
 
-    // Deduplication: "playerName:message" -> timestamp of last capture
-    private final Map<String, Long> recentCaptures = new ConcurrentHashMap<>();
+    // Deduplication: hash of (player UUID, message) -> time bucket of last capture
     private static final long DEDUP_WINDOW_MS = 500;
+    private final RecentCaptureTable recentCaptures = new RecentCaptureTable(4096, DEDUP_WINDOW_MS);
 
     public ChatListener(AntiToxicity plugin) {
         this.plugin = plugin;
@@ -45,24 +45,17 @@ public class ChatListener implements Listener {
             return;
         }
 
-        String playerName = player.getName();
-
         // Deduplication: skip if same player+message was captured in the last 500ms
-        String dedupeKey = playerName + ":" + message;
-        long now = System.currentTimeMillis();
-        Long lastCapture = recentCaptures.get(dedupeKey);
-        if (lastCapture != null && (now - lastCapture) < DEDUP_WINDOW_MS) {
+        if (recentCaptures.checkAndMark(player.getUniqueId(), message, System.currentTimeMillis())) {
             return;
         }
-        recentCaptures.put(dedupeKey, now);
 
-        // Clean old dedup entries periodically
-        if (recentCaptures.size() > 1000) {
-            recentCaptures.entrySet().removeIf(e -> (now - e.getValue()) > DEDUP_WINDOW_MS * 2);
-        }
+        String playerName = player.getName();
 
         plugin.storeMessage(playerName, message);
-        logger.info("[" + source + "] Captured from " + playerName + ": " + message);
+        if (plugin.isDebug()) {
+            logger.info("[" + source + "] Captured from " + playerName + ": " + message);
+        }
     }
 
     /**
@@ -84,6 +77,21 @@ public class ChatListener implements Listener {
                     }
             );
 
+            // Resolve the reflective path once; each event is then two direct handle calls
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> componentClass = Class.forName("net.kyori.adventure.text.Component");
+            Class<?> plainSerializerClass = Class.forName(
+                    "net.kyori.adventure.text.serializer.plain.PlainTextComponentSerializer");
+            Object serializer = plainSerializerClass.getMethod("plainText").invoke(null);
+
+            MethodHandle getPlayer = lookup.unreflect(asyncChatEventClass.getMethod("getPlayer"))
+                    .asType(MethodType.methodType(Player.class, Object.class));
+            MethodHandle serialize = lookup.unreflect(plainSerializerClass.getMethod("serialize", componentClass))
+                    .bindTo(serializer);
+            MethodHandle plainMessage = MethodHandles.filterReturnValue(
+                    lookup.unreflect(asyncChatEventClass.getMethod("originalMessage")), serialize)
+                    .asType(MethodType.methodType(String.class, Object.class));
+
             ChatListener self = this;
 
             plugin.getServer().getPluginManager().registerEvent(
@@ -92,22 +100,10 @@ public class ChatListener implements Listener {
                     EventPriority.MONITOR,
                     (listener, event) -> {
                         try {
-                            Method getPlayer = event.getClass().getMethod("getPlayer");
-                            Player player = (Player) getPlayer.invoke(event);
-
-                            Method originalMsgMethod = event.getClass().getMethod("originalMessage");
-                            Object component = originalMsgMethod.invoke(event);
-
-                            Class<?> plainSerializerClass = Class.forName(
-                                    "net.kyori.adventure.text.serializer.plain.PlainTextComponentSerializer");
-                            Method plainText = plainSerializerClass.getMethod("plainText");
-                            Object serializer = plainText.invoke(null);
-                            Method serialize = serializer.getClass().getMethod("serialize",
-                                    Class.forName("net.kyori.adventure.text.Component"));
-                            String messageText = (String) serialize.invoke(serializer, component);
-
+                            Player player = (Player) getPlayer.invokeExact((Object) event);
+                            String messageText = (String) plainMessage.invokeExact((Object) event);
                             self.captureMessage(player, messageText, "Modern");
-                        } catch (Exception e) {
+                        } catch (Throwable e) {
                             logger.warning("[ATOX] Modern chat listener error: " + e.getMessage());
                         }
                     },
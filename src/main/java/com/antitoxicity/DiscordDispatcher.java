@@ -0,0 +1,302 @@
+package com.antitoxicity;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Queued Discord webhook sender with a single writer thread. Callers only
+ * enqueue embeds and never wait on Discord. Pending embeds are merged into one
+ * message (up to Discord's 10 embeds per message), the {@code X-RateLimit-*} and
+ * {@code Retry-After} headers are respected, and the queue is bounded with
+ * drop-oldest backpressure. Every undelivered embed is kept in a spool file,
+ * rewritten by the writer thread whenever reports are queued or acknowledged
+ * and before any of them is sent, so a crash loses nothing that was queued;
+ * the spool is sent after the next start.
+ */
+public class DiscordDispatcher {
+
+    private static final int MAX_EMBEDS_PER_MESSAGE = 10;
+    // Discord rejects messages whose embeds total more than 6000 characters
+    private static final int MAX_CHARS_PER_MESSAGE = 5500;
+    private static final long MAX_BACKOFF_MILLIS = 60_000L;
+
+    private final String webhookUrl;
+    private final HttpTransport transport;
+    private final HttpTransport.Endpoint endpoint = new HttpTransport.Endpoint(Duration.ofSeconds(10), false);
+    private final Logger logger;
+    private final File spoolFile;
+    private final int capacity;
+
+    private final Deque<JsonObject> queue = new ArrayDeque<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile List<JsonObject> inFlight = new ArrayList<>();
+    private long nextSendAt = 0;
+    private int consecutiveFailures = 0;
+    private long dropped = 0;
+    // Queue changed since the spool was last written. Guarded by the queue lock.
+    private boolean spoolDirty = false;
+
+    public DiscordDispatcher(String webhookUrl, HttpTransport transport, Logger logger, File dataFolder, int capacity) {
+        this.webhookUrl = webhookUrl;
+        this.transport = transport;
+        this.logger = logger;
+        this.spoolFile = new File(dataFolder, "discord_queue.json");
+        this.capacity = Math.max(MAX_EMBEDS_PER_MESSAGE, capacity);
+
+        loadSpool();
+        this.writer = new Thread(this::runLoop, "ATOX-Discord");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /** Queues an embed for delivery. Drops the oldest pending embed when the queue is full. */
+    public void enqueue(JsonObject embed) {
+        synchronized (queue) {
+            addLast(embed);
+            spoolDirty = true;
+            queue.notifyAll();
+        }
+    }
+
+    private void addLast(JsonObject embed) {
+        if (queue.size() >= capacity) {
+            queue.pollFirst();
+            dropped++;
+            if (dropped == 1 || dropped % 50 == 0) {
+                logger.warning("[ATOX] Discord queue full, dropped oldest report (" + dropped + " dropped so far)");
+            }
+        }
+        queue.addLast(embed);
+    }
+
+    private void runLoop() {
+        while (running) {
+            List<JsonObject> batch = null;
+            List<JsonObject> spool = null;
+            synchronized (queue) {
+                try {
+                    if (spoolDirty) {
+                        // Spool before sending: nothing leaves the process that is not on disk
+                        spool = new ArrayList<>(queue);
+                        spoolDirty = false;
+                    } else if (queue.isEmpty()) {
+                        queue.wait();
+                        continue;
+                    } else {
+                        long wait = nextSendAt - System.currentTimeMillis();
+                        if (wait > 0) {
+                            queue.wait(wait);
+                            continue;
+                        }
+                        batch = takeBatch();
+                        inFlight = batch;
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            if (spool != null) {
+                saveSpool(spool, false);
+                continue;
+            }
+            send(batch);
+            inFlight = new ArrayList<>();
+            // Delivered or dropped reports leave the spool; requeued ones are rewritten unchanged
+            synchronized (queue) {
+                spoolDirty = true;
+            }
+        }
+    }
+
+    /** Takes as many queued embeds as fit into one webhook message. Caller holds the lock. */
+    private List<JsonObject> takeBatch() {
+        List<JsonObject> batch = new ArrayList<>(MAX_EMBEDS_PER_MESSAGE);
+        int chars = 0;
+        while (!queue.isEmpty() && batch.size() < MAX_EMBEDS_PER_MESSAGE) {
+            int size = queue.peekFirst().toString().length();
+            if (!batch.isEmpty() && chars + size > MAX_CHARS_PER_MESSAGE) break;
+            batch.add(queue.pollFirst());
+            chars += size;
+        }
+        return batch;
+    }
+
+    private void send(List<JsonObject> batch) {
+        JsonObject payload = new JsonObject();
+        payload.addProperty("username", "ATOX");
+        payload.addProperty("avatar_url", "https://i.imgur.com/4M34hi2.png");
+        JsonArray embeds = new JsonArray();
+        for (JsonObject embed : batch) embeds.add(embed);
+        payload.add("embeds", embeds);
+
+        try {
+            HttpTransport.Response response = transport.postJson(webhookUrl, payload.toString(), endpoint);
+            if (response.isSuccess()) {
+                consecutiveFailures = 0;
+                // Bucket exhausted: wait for the reset before the next message
+                if ("0".equals(response.headers.firstValue("X-RateLimit-Remaining").orElse(null))) {
+                    delayNextSend(secondsHeader(response, "X-RateLimit-Reset-After", 1.0));
+                }
+                return;
+            }
+            if (response.status == 429) {
+                double retryAfter = secondsHeader(response, "Retry-After", -1);
+                if (retryAfter < 0) {
+                    retryAfter = retryAfterFromBody(response.body);
+                }
+                logger.warning("[ATOX] Discord rate limited, retrying in " + retryAfter + "s");
+                requeue(batch);
+                delayNextSend(retryAfter);
+                return;
+            }
+            if (response.status >= 500) {
+                logger.warning("[ATOX] Discord webhook returned HTTP " + response.status + ", will retry");
+                requeue(batch);
+                backoff();
+                return;
+            }
+            logger.warning("[ATOX] Discord webhook returned HTTP " + response.status + ", dropping "
+                    + batch.size() + " report(s): " + response.body);
+        } catch (InterruptedException e) {
+            requeue(batch);
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.severe("[ATOX] Error sending Discord webhook: " + e.getMessage());
+            requeue(batch);
+            backoff();
+        }
+    }
+
+    /** Puts a failed batch back at the head of the queue, keeping the bound. */
+    private void requeue(List<JsonObject> batch) {
+        synchronized (queue) {
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                queue.addFirst(batch.get(i));
+            }
+            while (queue.size() > capacity) {
+                queue.pollFirst();
+                dropped++;
+            }
+        }
+    }
+
+    private void backoff() {
+        consecutiveFailures++;
+        long delay = Math.min(MAX_BACKOFF_MILLIS, 1000L << Math.min(consecutiveFailures, 16));
+        synchronized (queue) {
+            nextSendAt = System.currentTimeMillis() + delay;
+        }
+    }
+
+    private void delayNextSend(double seconds) {
+        synchronized (queue) {
+            nextSendAt = System.currentTimeMillis() + (long) Math.ceil(seconds * 1000);
+        }
+    }
+
+    private static double secondsHeader(HttpTransport.Response response, String name, double fallback) {
+        try {
+            return response.headers.firstValue(name).map(Double::parseDouble).orElse(fallback);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static double retryAfterFromBody(String body) {
+        try {
+            JsonObject obj = JsonParser.parseString(body).getAsJsonObject();
+            if (obj.has("retry_after")) return obj.get("retry_after").getAsDouble();
+        } catch (Exception ignored) {
+            // Not JSON, fall through to the default
+        }
+        return 5.0;
+    }
+
+    public int pendingCount() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /** Stops the writer and spools every undelivered embed to disk one last time. */
+    public void shutdown() {
+        running = false;
+        synchronized (queue) {
+            queue.notifyAll();
+        }
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<JsonObject> pending = new ArrayList<>();
+        // Still sending: spool it too, a duplicate report beats a lost one
+        if (writer.isAlive()) pending.addAll(inFlight);
+        synchronized (queue) {
+            pending.addAll(queue);
+            queue.clear();
+        }
+        saveSpool(pending, true);
+    }
+
+    /** Replaces the spool file with {@code pending}; the queue is bounded, so this stays small. */
+    private void saveSpool(List<JsonObject> pending, boolean announce) {
+        if (pending.isEmpty()) {
+            spoolFile.delete();
+            return;
+        }
+        JsonArray array = new JsonArray();
+        for (JsonObject embed : pending) array.add(embed);
+        File tmp = new File(spoolFile.getPath() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            out.write(array.toString());
+        } catch (IOException e) {
+            logger.severe("[ATOX] Failed to save undelivered Discord reports: " + e.getMessage());
+            return;
+        }
+        if (!tmp.renameTo(spoolFile)) {
+            spoolFile.delete();
+            if (!tmp.renameTo(spoolFile)) {
+                logger.severe("[ATOX] Failed to replace the Discord report spool");
+                return;
+            }
+        }
+        if (announce) {
+            logger.info("[ATOX] Saved " + pending.size() + " undelivered Discord report(s)");
+        }
+    }
+
+    private void loadSpool() {
+        if (!spoolFile.exists()) return;
+        try (Reader in = Files.newBufferedReader(spoolFile.toPath(), StandardCharsets.UTF_8)) {
+            int count = 0;
+            synchronized (queue) {
+                for (JsonElement elem : JsonParser.parseReader(in).getAsJsonArray()) {
+                    addLast(elem.getAsJsonObject());
+                    count++;
+                }
+            }
+            logger.info("[ATOX] Loaded " + count + " undelivered Discord report(s)");
+        } catch (Exception e) {
+            logger.warning("[ATOX] Failed to load undelivered Discord reports: " + e.getMessage());
+        }
+        // The file stays until the writer rewrites it with what is still undelivered
+    }
+}
@@ -3,10 +3,6 @@ package com.antitoxicity;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
@@ -18,27 +14,26 @@ public class DiscordWebhook {
     private final String serverName;
     private final String serverType;
     private final Logger logger;
+    private final DiscordDispatcher dispatcher;
 
     private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("MM/dd/yyyy HH:mm:ss");
 
-    public DiscordWebhook(String webhookUrl, String serverName, String serverType, Logger logger) {
+    public DiscordWebhook(String webhookUrl, String serverName, String serverType, Logger logger,
+                          DiscordDispatcher dispatcher) {
         this.webhookUrl = webhookUrl;
         this.serverName = serverName;
         this.serverType = serverType;
         this.logger = logger;
+        this.dispatcher = dispatcher;
     }
 
     /**
      * Sends analysis results to the Discord webhook.
-     * Only call this if there were messages analyzed.
+     * Only call this if there were messages analyzed. Like every send method
+     * here it only queues the embed and returns immediately.
      */
     public void sendReport(List<GeminiAnalyzer.Sanction> sanctions, int totalMessages, int totalPlayers) {
         try {
-            JsonObject payload = new JsonObject();
-            payload.addProperty("username", "ATOX");
-            payload.addProperty("avatar_url", "https://i.imgur.com/4M34hi2.png");
-
-            JsonArray embeds = new JsonArray();
             JsonObject embed = new JsonObject();
 
             String timestamp = LocalDateTime.now().format(FORMATTER);
@@ -103,43 +98,19 @@ public class DiscordWebhook {
             fields.add(statsField);
             embed.add("fields", fields);
 
-            embeds.add(embed);
-            payload.add("embeds", embeds);
-
-            sendPayload(payload.toString());
+            queue(embed);
         } catch (Exception e) {
-            logger.severe("[ATOX] Error sending Discord webhook: " + e.getMessage());
+            logger.severe("[ATOX] Error building Discord report: " + e.getMessage());
         }
     }
 
-    private void sendPayload(String jsonPayload) throws Exception {
-        URL url = new URL(webhookUrl);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-        conn.setDoOutput(true);
-        conn.setConnectTimeout(10000);
-        conn.setReadTimeout(10000);
-
-        try (OutputStream os = conn.getOutputStream()) {
-            os.write(jsonPayload.getBytes(StandardCharsets.UTF_8));
-        }
-
-        int responseCode = conn.getResponseCode();
-        if (responseCode != 200 && responseCode != 204) {
-            logger.warning("[ATOX] Discord webhook returned HTTP " + responseCode);
-        }
-
-        conn.disconnect();
+    private void queue(JsonObject embed) {
+        if (webhookUrl == null || webhookUrl.isEmpty() || dispatcher == null) return;
+        dispatcher.enqueue(embed);
     }
 
     public void sendUsernameBlock(String playerName, String reason) {
         try {
-            JsonObject payload = new JsonObject();
-            payload.addProperty("username", "ATOX");
-            payload.addProperty("avatar_url", "https://i.imgur.com/4M34hi2.png");
-
-            JsonArray embeds = new JsonArray();
             JsonObject embed = new JsonObject();
 
             embed.addProperty("title", "\uD83D\uDEAB Username Blocked");
@@ -174,34 +145,26 @@ public class DiscordWebhook {
             footer.addProperty("text", "\uD83C\uDFAE " + serverName + " | " + serverType + " | " + timestamp);
             embed.add("footer", footer);
 
-            embeds.add(embed);
-            payload.add("embeds", embeds);
-
-            sendPayload(payload.toString());
+            queue(embed);
         } catch (Exception e) {
-            logger.severe("[ATOX] Error sending username block notification: " + e.getMessage());
+            logger.severe("[ATOX] Error building username block notification: " + e.getMessage());
         }
     }
 
     public void sendDailySummary(SanctionTracker tracker) {
         try {
-            JsonObject payload = new JsonObject();
-            payload.addProperty("username", "ATOX");
-            payload.addProperty("avatar_url", "https://i.imgur.com/4M34hi2.png");
-
-            JsonArray embeds = new JsonArray();
             JsonObject embed = new JsonObject();
 
             embed.addProperty("title", "\uD83D\uDCCA Daily Summary - " + serverName);
             embed.addProperty("color", 3447003); // Blue
 
-            java.util.List<SanctionTracker.SanctionRecord> last24h = tracker.getLast24hSanctions();
+            int last24h = tracker.getLast24hCount();
             java.util.Map<String, Integer> byType = tracker.getSanctionsByType();
             java.util.List<java.util.Map.Entry<String, Integer>> top = tracker.getTopSanctionedPlayers(5);
 
             StringBuilder desc = new StringBuilder();
             desc.append("**\uD83D\uDCEC Messages analyzed (total):** ").append(tracker.getTotalMessagesAnalyzed()).append("\n");
-            desc.append("**\u2696\uFE0F Sanctions last 24h:** ").append(last24h.size()).append("\n");
+            desc.append("**\u2696\uFE0F Sanctions last 24h:** ").append(last24h).append("\n");
             desc.append("**\uD83D\uDD04 Cycles completed:** ").append(tracker.getTotalCycles()).append("\n");
             desc.append("**\u274C False positives reported:** ").append(tracker.getFalsePositivesReported()).append("\n\n");
 
@@ -230,12 +193,9 @@ public class DiscordWebhook {
             footer.addProperty("text", "\uD83C\uDFAE " + serverName + " | " + serverType + " | " + timestamp);
             embed.add("footer", footer);
 
-            embeds.add(embed);
-            payload.add("embeds", embeds);
-
-            sendPayload(payload.toString());
+            queue(embed);
         } catch (Exception e) {
-            logger.severe("[ATOX] Error sending daily summary: " + e.getMessage());
+            logger.severe("[ATOX] Error building daily summary: " + e.getMessage());
         }
     }
 
@@ -0,0 +1,139 @@
+package com.antitoxicity;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * Counts each player's sanctions per action in day buckets covering the
+ * escalation window, and upgrades repeated WARNs to a MUTE and repeated MUTEs
+ * to a BAN.
+ *
+ * <p>Every counter cell packs the day it belongs to (upper 32 bits) with its
+ * count (lower 32 bits). Recording is a CAS on one cell that restarts the count
+ * when the cell still holds an older day, so stale buckets expire by being
+ * reused and nothing is ever swept. A lookup reads {@code window-days} cells of
+ * one player, whatever the length of the history.
+ */
+public class EscalationEngine {
+
+    private static final long DAY_MILLIS = 24L * 3600L * 1000L;
+    private static final long COUNT_MASK = 0xFFFFFFFFL;
+    private static final String[] ACTIONS = {"WARN", "MUTE", "KICK", "BAN", "IPBAN"};
+
+    private final ConcurrentHashMap<String, AtomicLongArray> counters = new ConcurrentHashMap<>();
+    private final Logger logger;
+    private final int warnsForMute;
+    private final int mutesForBan;
+    private final int windowDays;
+    // One spare bucket so the day rolling out of the window never shares a cell with today
+    private final int buckets;
+
+    public EscalationEngine(Logger logger, int warnsForMute, int mutesForBan, int windowDays) {
+        this.logger = logger;
+        this.warnsForMute = Math.max(1, warnsForMute);
+        this.mutesForBan = Math.max(1, mutesForBan);
+        this.windowDays = Math.max(1, windowDays);
+        this.buckets = this.windowDays + 1;
+    }
+
+    public void record(String player, String action, long timeMillis) {
+        int a = actionIndex(action);
+        if (a < 0) return;
+        long day = Math.floorDiv(timeMillis, DAY_MILLIS);
+        AtomicLongArray cells = counters.computeIfAbsent(key(player),
+                k -> new AtomicLongArray(buckets * ACTIONS.length));
+        int i = cell(day, a);
+        while (true) {
+            long current = cells.get(i);
+            long cellDay = current >>> 32;
+            long next;
+            if (cellDay == day) {
+                next = current + 1;
+            } else if (cellDay < day) {
+                next = (day << 32) | 1;
+            } else {
+                return; // Backdated record older than what the bucket now holds
+            }
+            if (cells.compareAndSet(i, current, next)) return;
+        }
+    }
+
+    /** Sanctions of {@code action} for {@code player} within the window ending at {@code nowMillis}. */
+    public int count(String player, String action, long nowMillis) {
+        int a = actionIndex(action);
+        AtomicLongArray cells = a < 0 ? null : counters.get(key(player));
+        if (cells == null) return 0;
+        long today = Math.floorDiv(nowMillis, DAY_MILLIS);
+        int total = 0;
+        for (long day = today - windowDays + 1; day <= today; day++) {
+            long current = cells.get(cell(day, a));
+            if ((current >>> 32) == day) total += (int) (current & COUNT_MASK);
+        }
+        return total;
+    }
+
+    /**
+     * The action a new sanction should be upgraded to, counting the new one
+     * itself, or null when it stands as is.
+     */
+    public String escalationFor(String player, String action, long nowMillis) {
+        if ("MUTE".equals(action)) {
+            int mutes = count(player, "MUTE", nowMillis) + 1;
+            if (mutes >= mutesForBan) {
+                logger.warning("[ATOX] Escalation: " + player + " has " + mutes + " mutes in window -> BAN");
+                return "BAN";
+            }
+        } else if ("WARN".equals(action)) {
+            int warns = count(player, "WARN", nowMillis) + 1;
+            if (warns >= warnsForMute) {
+                logger.warning("[ATOX] Escalation: " + player + " has " + warns + " warns in window -> MUTE");
+                return "MUTE";
+            }
+        }
+        return null;
+    }
+
+    /** Forgets players with nothing left in the window. */
+    public int prune(long nowMillis) {
+        long oldest = Math.floorDiv(nowMillis, DAY_MILLIS) - windowDays + 1;
+        int pruned = 0;
+        for (String player : counters.keySet()) {
+            if (counters.computeIfPresent(player, (k, cells) -> isStale(cells, oldest) ? null : cells) == null) {
+                pruned++;
+            }
+        }
+        return pruned;
+    }
+
+    private static boolean isStale(AtomicLongArray cells, long oldestDay) {
+        for (int i = 0; i < cells.length(); i++) {
+            if ((cells.get(i) >>> 32) >= oldestDay) return false;
+        }
+        return true;
+    }
+
+    public int trackedPlayers() {
+        return counters.size();
+    }
+
+    public int windowDays() {
+        return windowDays;
+    }
+
+    private int cell(long day, int action) {
+        return (int) Math.floorMod(day, (long) buckets) * ACTIONS.length + action;
+    }
+
+    private static String key(String player) {
+        return player.toLowerCase(Locale.ROOT);
+    }
+
+    private static int actionIndex(String action) {
+        for (int i = 0; i < ACTIONS.length; i++) {
+            if (ACTIONS[i].equals(action)) return i;
+        }
+        return -1;
+    }
+}
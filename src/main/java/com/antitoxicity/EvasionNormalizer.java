@@ -0,0 +1,166 @@
+package com.antitoxicity;
+
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Undoes common filter-evasion tricks in a single pass: letters spelled out with
+ * spaces ("f u c k"), separators inside words ("f.u-c_k") and leetspeak ("5h1t").
+ *
+ * The output is identical to the original regex pipeline
+ * {@code replaceAll("(?<=\\b\\S) (?=\\S\\b)", "")}, then
+ * {@code replaceAll("(?<=\\S)[.\\-_*](?=\\S)", "")}, {@code toLowerCase()} and the
+ * leet replacements, but it works on a reused per-thread buffer with a char
+ * translation table. Input containing surrogate pairs still goes through the
+ * (precompiled) regex pipeline, since the lookarounds treat a pair as one character.
+ */
+final class EvasionNormalizer {
+
+    private static final Pattern SPACED_LETTERS = Pattern.compile("(?<=\\b\\S) (?=\\S\\b)");
+    private static final Pattern INNER_SEPARATORS = Pattern.compile("(?<=\\S)[.\\-_*](?=\\S)");
+
+    // ASCII lower-casing and leet substitution in one lookup
+    private static final char[] TRANSLATE = new char[128];
+    static {
+        for (char c = 0; c < 128; c++) {
+            TRANSLATE[c] = (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+        }
+        TRANSLATE['4'] = 'a'; TRANSLATE['@'] = 'a';
+        TRANSLATE['3'] = 'e';
+        TRANSLATE['1'] = 'i'; TRANSLATE['!'] = 'i';
+        TRANSLATE['0'] = 'o';
+        TRANSLATE['5'] = 's'; TRANSLATE['$'] = 's';
+        TRANSLATE['7'] = 't';
+    }
+
+    // JDK 19+ made \b ASCII-only by default; match whatever this JVM's regex engine does
+    private static final boolean UNICODE_WORD_BOUNDARY = Pattern.compile("\\b").matcher("\u00e9").find();
+
+    private static final ThreadLocal<char[]> BUFFER = ThreadLocal.withInitial(() -> new char[256]);
+
+    private EvasionNormalizer() {}
+
+    static String normalize(String message) {
+        int n = message.length();
+        char[] out = BUFFER.get();
+        if (out.length < n) {
+            out = new char[Math.max(n, out.length * 2)];
+            BUFFER.set(out);
+        }
+
+        // The space pass feeds characters one at a time into the separator pass,
+        // which needs one character of look-ahead: 'cur' is held back until 'next' is known.
+        int len = 0;
+        boolean ascii = true;
+        boolean hasPrev = false;
+        boolean hasCur = false;
+        char prev = 0;
+        char cur = 0;
+        for (int i = 0; i < n; i++) {
+            char c = message.charAt(i);
+            if (Character.isSurrogate(c)) {
+                return normalizeWithRegex(message);
+            }
+            if (c == ' ' && isSpacedLetterGap(message, i)) {
+                continue;
+            }
+            if (hasCur) {
+                if (!(isSeparator(cur) && hasPrev && !isWhitespace(prev) && !isWhitespace(c))) {
+                    if (cur >= 128) ascii = false;
+                    out[len++] = cur;
+                }
+                prev = cur;
+                hasPrev = true;
+            }
+            cur = c;
+            hasCur = true;
+        }
+        if (hasCur) {
+            if (cur >= 128) ascii = false;
+            out[len++] = cur;
+        }
+
+        String leet;
+        if (ascii && usesPlainLowerCase()) {
+            for (int i = 0; i < len; i++) {
+                out[i] = TRANSLATE[out[i]];
+            }
+            leet = new String(out, 0, len);
+        } else {
+            leet = translate(new String(out, 0, len).toLowerCase());
+        }
+        return decorate(message, leet);
+    }
+
+    /** The original pipeline, used for input the fast path cannot mirror exactly. */
+    private static String normalizeWithRegex(String message) {
+        String spaceNorm = SPACED_LETTERS.matcher(message).replaceAll("");
+        String dotNorm = INNER_SEPARATORS.matcher(spaceNorm).replaceAll("");
+        return decorate(message, translate(dotNorm.toLowerCase()));
+    }
+
+    private static String decorate(String message, String leet) {
+        if (!leet.equalsIgnoreCase(message)) {
+            return message + " [normalized: " + leet + "]";
+        }
+        return message;
+    }
+
+    /** Leet substitution only; the input is already lower-cased. */
+    private static String translate(String lower) {
+        char[] chars = lower.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            char c = chars[i];
+            if (c < 128) chars[i] = TRANSLATE[c];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Whether the space at {@code i} sits between two single non-space characters
+     * that each touch a word boundary, i.e. {@code (?<=\b\S) (?=\S\b)}.
+     */
+    private static boolean isSpacedLetterGap(String s, int i) {
+        int n = s.length();
+        if (i == 0 || i + 1 >= n) return false;
+        if (isWhitespace(s.charAt(i - 1)) || isWhitespace(s.charAt(i + 1))) return false;
+        boolean boundaryBefore = (i >= 2 && isWordAt(s, i - 2)) != isWordAt(s, i - 1);
+        boolean boundaryAfter = isWordAt(s, i + 1) != (i + 2 < n && isWordAt(s, i + 2));
+        return boundaryBefore && boundaryAfter;
+    }
+
+    /** Word-character test used by {@code \b}, including its handling of combining marks. */
+    private static boolean isWordAt(String s, int i) {
+        char c = s.charAt(i);
+        if (isWordChar(c)) return true;
+        if (Character.getType(c) != Character.NON_SPACING_MARK) return false;
+        for (int x = i; x >= 0; x--) {
+            char b = s.charAt(x);
+            if (Character.isLetterOrDigit(b)) return true;
+            if (Character.getType(b) != Character.NON_SPACING_MARK) return false;
+        }
+        return false;
+    }
+
+    private static boolean isWordChar(char c) {
+        if (c < 128) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+        }
+        return UNICODE_WORD_BOUNDARY && Character.isLetterOrDigit(c);
+    }
+
+    /** Regex {@code \s}: [ \t\n\x0B\f\r]. */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '.' || c == '-' || c == '_' || c == '*';
+    }
+
+    /** String.toLowerCase() special-cases these languages even for ASCII letters. */
+    private static boolean usesPlainLowerCase() {
+        String lang = Locale.getDefault().getLanguage();
+        return !("tr".equals(lang) || "az".equals(lang) || "lt".equals(lang));
+    }
+}
@@ -1,66 +1,157 @@
 package com.antitoxicity;
 
 import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 public class GeminiAnalyzer {
 
+    // Response schemas for structured-output mode (OpenAPI subset understood by Gemini)
+    private static final JsonObject SANCTIONS_SCHEMA = JsonParser.parseString(
+            "{\"type\":\"ARRAY\",\"items\":{\"type\":\"OBJECT\",\"properties\":{"
+                    + "\"player\":{\"type\":\"STRING\"},"
+                    + "\"action\":{\"type\":\"STRING\",\"enum\":[\"WARN\",\"MUTE\",\"KICK\",\"BAN\",\"IPBAN\"]},"
+                    + "\"duration\":{\"type\":\"STRING\"},"
+                    + "\"reason\":{\"type\":\"STRING\"},"
+                    + "\"trigger_message\":{\"type\":\"STRING\"}},"
+                    + "\"required\":[\"player\",\"action\",\"reason\",\"trigger_message\"],"
+                    + "\"propertyOrdering\":[\"player\",\"action\",\"duration\",\"reason\",\"trigger_message\"]}}"
+    ).getAsJsonObject();
+    private static final JsonObject USERNAME_SCHEMA = JsonParser.parseString(
+            "{\"type\":\"OBJECT\",\"properties\":{"
+                    + "\"offensive\":{\"type\":\"BOOLEAN\"},"
+                    + "\"reason\":{\"type\":\"STRING\"}},"
+                    + "\"required\":[\"offensive\",\"reason\"]}"
+    ).getAsJsonObject();
+    private static final JsonObject USERNAME_BATCH_SCHEMA = JsonParser.parseString(
+            "{\"type\":\"ARRAY\",\"items\":{\"type\":\"OBJECT\",\"properties\":{"
+                    + "\"name\":{\"type\":\"STRING\"},"
+                    + "\"reason\":{\"type\":\"STRING\"}},"
+                    + "\"required\":[\"name\",\"reason\"]}}"
+    ).getAsJsonObject();
+
+    private static final Gson GSON = new Gson();
+    private static final Gson JSON = new GsonBuilder().disableHtmlEscaping().create();
+
+    private static final int INITIAL_BUFFER = 8192;
+    private static final int MAX_RETAINED_BUFFER = 256 * 1024;
+    private static final ThreadLocal<StringBuilder> PROMPT_BUFFER =
+            ThreadLocal.withInitial(() -> new StringBuilder(INITIAL_BUFFER));
+
     private final String apiKey;
-    private final String model;
-    private final String fallbackModel;
+    private final ModelRouter router;
     private final String serverType;
     private final Logger logger;
-
-    public GeminiAnalyzer(String apiKey, String model, String fallbackModel, String serverType, Logger logger) {
+    private final HttpTransport transport;
+    private final String baseUrl;
+    private final HttpTransport.Endpoint endpoint;
+    private final boolean streamResponses;
+    private final boolean structuredOutput;
+    private final long hedgeAfterMillis;
+    // Shared by every chat analysis request: shards, retries, failover attempts and hedge legs
+    private final RateLimiter requestLimiter;
+
+    // Serialized request prefixes (system instruction, config, schema), built once per config load
+    private final String chatTemplate;
+    private final String usernameTemplate;
+    private final String usernameBatchTemplate;
+
+    // Parse metrics since the last config load
+    private final AtomicLong responsesParsed = new AtomicLong();
+    private final AtomicLong unparseableResponses = new AtomicLong();
+    private final AtomicLong truncatedResponses = new AtomicLong();
+    private final AtomicLong malformedSanctions = new AtomicLong();
+
+    public GeminiAnalyzer(String apiKey, ModelRouter router, String serverType, Logger logger,
+                          HttpTransport transport, String baseUrl, HttpTransport.Endpoint endpoint,
+                          boolean streamResponses, boolean structuredOutput, long hedgeAfterMillis,
+                          RateLimiter requestLimiter) {
         this.apiKey = apiKey;
-        this.model = model;
-        this.fallbackModel = fallbackModel;
+        this.router = router;
         this.serverType = serverType;
         this.logger = logger;
+        this.transport = transport;
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.endpoint = endpoint;
+        this.streamResponses = streamResponses;
+        this.structuredOutput = structuredOutput;
+        this.hedgeAfterMillis = hedgeAfterMillis;
+        this.requestLimiter = requestLimiter;
+        this.chatTemplate = buildRequestTemplate(buildChatInstruction(), SANCTIONS_SCHEMA);
+        this.usernameTemplate = buildRequestTemplate(buildUsernameInstruction(), USERNAME_SCHEMA);
+        this.usernameBatchTemplate = buildRequestTemplate(buildUsernameBatchInstruction(), USERNAME_BATCH_SCHEMA);
     }
 
     private static class ModelBlockedException extends RuntimeException {
         ModelBlockedException(String reason) { super(reason); }
     }
 
+    private static class GeminiHttpException extends RuntimeException {
+        final int status;
+
+        GeminiHttpException(int status) {
+            super("Gemini API returned HTTP " + status);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Whether a failed call says the model is unavailable: transport errors,
+     * timeouts, 429 and 5xx. An answer that does not parse, or another 4xx,
+     * is the request's problem and must not open the model's breaker.
+     */
+    private static boolean isOutage(Throwable error) {
+        if (error instanceof GeminiHttpException) {
+            int status = ((GeminiHttpException) error).status;
+            return status == 429 || status >= 500;
+        }
+        return error instanceof IOException;
+    }
+
+    private void recordError(String modelName, Throwable error) {
+        if (isOutage(error)) router.recordFailure(modelName, String.valueOf(error.getMessage()));
+        else router.recordBadAnswer(modelName);
+    }
+
+    // Threads for the second leg of hedged requests; idle ones die after a minute
+    private static final ExecutorService HEDGE_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "ATOX-Gemini-Hedge");
+        t.setDaemon(true);
+        return t;
+    });
+
     /**
      * Sends messages to Gemini for analysis and returns a list of sanctions.
      * Returns null on API error (caller should NOT mark messages as analyzed).
      * Returns empty list if API succeeded but no sanctions needed.
      */
     // ---- Evasion detection ----
-    private static final Map<String, String> LEET_MAP = new LinkedHashMap<>();
-    static {
-        LEET_MAP.put("4", "a"); LEET_MAP.put("@", "a");
-        LEET_MAP.put("3", "e");
-        LEET_MAP.put("1", "i"); LEET_MAP.put("!", "i");
-        LEET_MAP.put("0", "o");
-        LEET_MAP.put("5", "s"); LEET_MAP.put("$", "s");
-        LEET_MAP.put("7", "t");
-    }
-
     static String normalizeEvasion(String message) {
-        String spaceNorm = message.replaceAll("(?<=\\b\\S) (?=\\S\\b)", "");
-        String dotNorm = spaceNorm.replaceAll("(?<=\\S)[.\\-_*](?=\\S)", "");
-        String leet = dotNorm.toLowerCase();
-        for (Map.Entry<String, String> entry : LEET_MAP.entrySet()) {
-            leet = leet.replace(entry.getKey(), entry.getValue());
-        }
-        if (!leet.equalsIgnoreCase(message)) {
-            return message + " [normalized: " + leet + "]";
-        }
-        return message;
+        return EvasionNormalizer.normalize(message);
     }
 
     public List<Sanction> analyze(Map<String, List<String>> messagesByPlayer) {
@@ -68,6 +159,26 @@ public class GeminiAnalyzer {
     }
 
     public List<Sanction> analyze(Map<String, List<String>> messagesByPlayer, Map<String, List<String>> contextMessages) {
+        return analyze(messagesByPlayer, contextMessages, null);
+    }
+
+    /**
+     * Same as {@link #analyze(Map, Map)}, but also hands every sanction to
+     * {@code onSanction} as soon as it has been parsed, before the rest of the
+     * answer has arrived when streaming is enabled.
+     */
+    public List<Sanction> analyze(Map<String, List<String>> messagesByPlayer, Map<String, List<String>> contextMessages,
+                                  Consumer<Sanction> onSanction) {
+        return analyze(messagesByPlayer, contextMessages, onSanction, false);
+    }
+
+    /**
+     * Full form: with {@code hedge} set and more than one healthy model, a
+     * second model is asked as well if the first has not answered within the
+     * hedge delay, and the first good answer wins.
+     */
+    public List<Sanction> analyze(Map<String, List<String>> messagesByPlayer, Map<String, List<String>> contextMessages,
+                                  Consumer<Sanction> onSanction, boolean hedge) {
         if (messagesByPlayer.isEmpty()) {
             return new ArrayList<>();
         }
@@ -84,28 +195,142 @@ public class GeminiAnalyzer {
 
         String prompt = buildPrompt(normalized, contextMessages);
 
+        // Each attempt goes to a different model; open circuits are skipped
+        Set<String> tried = new HashSet<>();
+        for (int attempt = 0; attempt < router.size(); attempt++) {
+            String modelName = router.select(tried);
+            if (modelName == null) break;
+            tried.add(modelName);
+
+            List<Sanction> sanctions = hedge && attempt == 0
+                    ? hedgedAttempt(prompt, modelName, tried, onSanction)
+                    : attempt(prompt, modelName, onSanction);
+            if (sanctions != null) {
+                return sanctions;
+            }
+            if (attempt + 1 < router.size()) {
+                try {
+                    Thread.sleep(router.backoffMillis(attempt));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        logger.severe("[ATOX] API ERROR - messages will be retained for next cycle: "
+                + (tried.isEmpty() ? "every model's circuit is open" : "no model answered (tried " + tried + ")"));
+        return null;
+    }
+
+    /**
+     * One request to one model, reported to the router, once a permit of the
+     * request limit is free. Null if it did not produce an answer.
+     */
+    private List<Sanction> attempt(String prompt, String modelName, Consumer<Sanction> onSanction) {
+        if (!requestLimiter.acquire()) return null;
+        return send(prompt, modelName, onSanction);
+    }
+
+    /** {@link #attempt} for a caller that already holds a permit. */
+    private List<Sanction> send(String prompt, String modelName, Consumer<Sanction> onSanction) {
+        long start = System.nanoTime();
         try {
-            String response = callGemini(prompt, model);
-            return parseSanctions(response);
+            List<Sanction> sanctions = requestSanctions(prompt, modelName, onSanction);
+            router.recordSuccess(modelName, (System.nanoTime() - start) / 1_000_000L);
+            return sanctions;
         } catch (ModelBlockedException e) {
-            logger.warning("[ATOX] Primary model blocked (" + e.getMessage() + "). Retrying with " + fallbackModel + "...");
+            router.recordBlocked(modelName);
+            logger.warning("[ATOX] Model " + modelName + " blocked the response (" + e.getMessage() + "), trying another model.");
         } catch (Exception e) {
-            logger.severe("[ATOX] API ERROR - messages will be retained for next cycle: " + e.getMessage());
-            return null;
+            recordError(modelName, e);
+            logger.warning("[ATOX] Model " + modelName + " failed: " + e.getMessage());
         }
+        return null;
+    }
+
+    /**
+     * Sends the request to {@code primary}; if it has not answered within the
+     * hedge delay, sends it to a second model too. Only the first leg that
+     * produces a sanction may forward sanctions early, and its answer is the one
+     * kept when it succeeds. If it fails after forwarding, the other leg's answer
+     * is kept with the forwarded sanctions merged in, so nothing that was already
+     * applied is missing from the result.
+     */
+    private List<Sanction> hedgedAttempt(String prompt, String primary, Set<String> tried, Consumer<Sanction> onSanction) {
+        AtomicInteger owner = new AtomicInteger(-1);
+        List<Sanction> forwarded = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<List<Sanction>>> legs = new ArrayList<>(2);
+        legs.add(CompletableFuture.supplyAsync(() -> attempt(prompt, primary, claim(owner, 0, onSanction, forwarded)), HEDGE_EXECUTOR));
 
-        // Retry with fallback model
+        long delay = hedgeAfterMillis > 0 ? hedgeAfterMillis : router.p95Millis(primary);
         try {
-            String response = callGemini(prompt, fallbackModel);
-            return parseSanctions(response);
-        } catch (Exception e) {
-            logger.severe("[ATOX] Fallback model " + fallbackModel + " also failed: " + e.getMessage());
+            return legs.get(0).get(delay, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Slow answer: hedge below
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
             return null;
         }
+
+        String secondary = router.select(tried);
+        // A hedge is optional: never wait for a permit, or exceed the limit, to send one
+        if (secondary == null || !requestLimiter.tryAcquire()) {
+            return legs.get(0).join();
+        }
+        tried.add(secondary);
+        logger.info("[ATOX] " + primary + " slower than " + delay + "ms on a severe shard, hedging with " + secondary + ".");
+        legs.add(CompletableFuture.supplyAsync(() -> send(prompt, secondary, claim(owner, 1, onSanction, forwarded)), HEDGE_EXECUTOR));
+
+        CompletableFuture<List<Sanction>> first = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(legs.size());
+        for (CompletableFuture<List<Sanction>> leg : legs) {
+            leg.whenComplete((sanctions, error) -> {
+                if (sanctions != null) first.complete(sanctions);
+                else if (remaining.decrementAndGet() == 0) first.complete(null);
+            });
+        }
+        List<Sanction> winner = first.join();
+
+        int claimed = owner.get();
+        if (claimed < 0) return winner;
+        List<Sanction> owned = legs.get(claimed).join();
+        if (owned != null || winner == null) return owned;
+
+        // Never switch legs silently: what the failed leg forwarded has been applied
+        List<Sanction> merged = new ArrayList<>(winner);
+        Set<String> present = new HashSet<>();
+        for (Sanction s : winner) present.add(sanctionKey(s));
+        synchronized (forwarded) {
+            for (Sanction s : forwarded) {
+                if (present.add(sanctionKey(s))) merged.add(s);
+            }
+        }
+        logger.warning("[ATOX] " + (claimed == 0 ? primary : secondary) + " failed after forwarding "
+                + forwarded.size() + " sanction(s); kept them alongside the other model's answer.");
+        return merged;
     }
 
-    private String buildPrompt(Map<String, List<String>> messagesByPlayer, Map<String, List<String>> contextMessages) {
-        StringBuilder sb = new StringBuilder();
+    private static Consumer<Sanction> claim(AtomicInteger owner, int leg, Consumer<Sanction> onSanction,
+                                            List<Sanction> forwarded) {
+        if (onSanction == null) return null;
+        return sanction -> {
+            if (owner.compareAndSet(-1, leg) || owner.get() == leg) {
+                forwarded.add(sanction);
+                onSanction.accept(sanction);
+            }
+        };
+    }
+
+    private static String sanctionKey(Sanction sanction) {
+        return sanction.player.toLowerCase(Locale.ROOT) + "|" + sanction.action;
+    }
+
+    /** Everything in the chat prompt that only depends on the config, sent as the system instruction. */
+    private String buildChatInstruction() {
+        StringBuilder sb = new StringBuilder(6144);
         sb.append("SYSTEM CONTEXT: You are an automated CHAT MODERATION system for a Minecraft server.\n");
         sb.append("Your role is to analyze messages written by players and decide if they deserve a sanction. ");
         sb.append("You are NOT generating harmful content \u2014 you are EVALUATING third-party content to protect players.\n");
@@ -148,6 +373,31 @@ public class GeminiAnalyzer {
             sb.append("ANARCHY SERVER: EXTREMELY HIGH threshold. Only sanction real doxxing, credible physical threats, or illegal content.\n\n");
         }
 
+        sb.append("RESPOND ONLY with a JSON array. If NO sanctions, respond: []\n");
+        sb.append("Format when there are sanctions:\n");
+        sb.append("[\n");
+        sb.append("  {\n");
+        sb.append("    \"player\": \"player_name\",\n");
+        sb.append("    \"action\": \"WARN|MUTE|KICK|BAN|IPBAN\",\n");
+        sb.append("    \"duration\": \"\",\n");
+        sb.append("    \"reason\": \"concise reason in English\",\n");
+        sb.append("    \"trigger_message\": \"exact message that caused the sanction\"\n");
+        sb.append("  }\n");
+        sb.append("]\n\n");
+        sb.append("DURATIONS:\n");
+        sb.append("- MUTE: 5m / 15m / 30m / 1h / 3h / 6h / 12h / 1d / 3d / 7d (based on severity)\n");
+        sb.append("- Temporary BAN: 1h / 6h / 1d / 3d / 7d / 14d / 30d\n");
+        sb.append("- Permanent BAN/IPBAN: set \"permanent\" (extreme cases only)\n");
+        sb.append("- WARN and KICK: duration = \"\" (empty)\n\n");
+        sb.append("REMEMBER: Respond ONLY with the JSON. No markdown. No extra text.\n");
+
+        return sb.toString();
+    }
+
+    /** Per-request part of the chat prompt: history and the messages to judge. */
+    private String buildPrompt(Map<String, List<String>> messagesByPlayer, Map<String, List<String>> contextMessages) {
+        StringBuilder sb = promptBuffer();
+
         // Context: show recent history for players who have it
         if (contextMessages != null && !contextMessages.isEmpty()) {
             sb.append("=== RECENT HISTORY (context only, do NOT sanction) ===\n");
@@ -177,54 +427,58 @@ public class GeminiAnalyzer {
             sb.append("\n");
         }
 
-        sb.append("---\n\n");
-        sb.append("RESPOND ONLY with a JSON array. If NO sanctions, respond: []\n");
-        sb.append("Format when there are sanctions:\n");
-        sb.append("[\n");
-        sb.append("  {\n");
-        sb.append("    \"player\": \"player_name\",\n");
-        sb.append("    \"action\": \"WARN|MUTE|KICK|BAN|IPBAN\",\n");
-        sb.append("    \"duration\": \"\",\n");
-        sb.append("    \"reason\": \"concise reason in English\",\n");
-        sb.append("    \"trigger_message\": \"exact message that caused the sanction\"\n");
-        sb.append("  }\n");
-        sb.append("]\n\n");
-        sb.append("DURATIONS:\n");
-        sb.append("- MUTE: 5m / 15m / 30m / 1h / 3h / 6h / 12h / 1d / 3d / 7d (based on severity)\n");
-        sb.append("- Temporary BAN: 1h / 6h / 1d / 3d / 7d / 14d / 30d\n");
-        sb.append("- Permanent BAN/IPBAN: set \"permanent\" (extreme cases only)\n");
-        sb.append("- WARN and KICK: duration = \"\" (empty)\n\n");
-        sb.append("REMEMBER: Respond ONLY with the JSON. No markdown. No extra text.\n");
+        sb.append("---\n");
+        sb.append("Respond with the JSON array described in your instructions.\n");
 
         return sb.toString();
     }
 
-    private String callGemini(String prompt, String modelName) throws Exception {
-        String urlStr = "https://generativelanguage.googleapis.com/v1beta/models/"
-                + modelName + ":generateContent?key=" + apiKey;
+    /**
+     * Per-thread buffer for the dynamic part of a prompt, so each request does not
+     * grow a fresh builder from 16 chars. Dropped if a huge cycle inflated it.
+     */
+    private static StringBuilder promptBuffer() {
+        StringBuilder sb = PROMPT_BUFFER.get();
+        if (sb.capacity() > MAX_RETAINED_BUFFER) {
+            sb = new StringBuilder(INITIAL_BUFFER);
+            PROMPT_BUFFER.set(sb);
+        }
+        sb.setLength(0);
+        return sb;
+    }
+
+    private String geminiUrl(String modelName) {
+        return baseUrl + "/models/" + modelName + ":generateContent?key=" + apiKey;
+    }
 
-        URL url = new URL(urlStr);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-        conn.setDoOutput(true);
-        conn.setConnectTimeout(30000);
-        conn.setReadTimeout(60000);
+    private String geminiStreamUrl(String modelName) {
+        return baseUrl + "/models/" + modelName + ":streamGenerateContent?alt=sse&key=" + apiKey;
+    }
 
+    /**
+     * Serializes everything in a request except the user prompt: system
+     * instruction, generation config (with the response schema in structured
+     * mode) and safety settings. Done once per config load; each request only
+     * appends its escaped prompt.
+     */
+    private String buildRequestTemplate(String systemInstruction, JsonObject schema) {
         JsonObject requestBody = new JsonObject();
-        JsonArray contents = new JsonArray();
-        JsonObject content = new JsonObject();
-        JsonArray parts = new JsonArray();
-        JsonObject part = new JsonObject();
-        part.addProperty("text", prompt);
-        parts.add(part);
-        content.add("parts", parts);
-        contents.add(content);
-        requestBody.add("contents", contents);
+
+        JsonObject system = new JsonObject();
+        JsonArray systemParts = new JsonArray();
+        JsonObject systemPart = new JsonObject();
+        systemPart.addProperty("text", systemInstruction);
+        systemParts.add(systemPart);
+        system.add("parts", systemParts);
+        requestBody.add("systemInstruction", system);
 
         JsonObject generationConfig = new JsonObject();
         generationConfig.addProperty("temperature", 0.1);
         generationConfig.addProperty("maxOutputTokens", 2048);
+        if (structuredOutput && schema != null) {
+            generationConfig.addProperty("responseMimeType", "application/json");
+            generationConfig.add("responseSchema", schema);
+        }
         requestBody.add("generationConfig", generationConfig);
 
         JsonArray safetySettings = new JsonArray();
@@ -241,93 +495,205 @@ public class GeminiAnalyzer {
         }
         requestBody.add("safetySettings", safetySettings);
 
-        String jsonBody = requestBody.toString();
+        // Drop the closing brace, contents goes last so the prompt can be appended
+        String json = requestBody.toString();
+        return json.substring(0, json.length() - 1) + ",\"contents\":[{\"role\":\"user\",\"parts\":[{\"text\":";
+    }
 
-        try (OutputStream os = conn.getOutputStream()) {
-            os.write(jsonBody.getBytes(StandardCharsets.UTF_8));
-        }
+    private static String buildRequestBody(String template, String prompt) {
+        String escaped = JSON.toJson(prompt);
+        return new StringBuilder(template.length() + escaped.length() + 8)
+                .append(template).append(escaped).append("}]}]}").toString();
+    }
+
+    private String callGemini(String template, String prompt, String modelName) throws Exception {
+        HttpTransport.Response response = transport.postJson(geminiUrl(modelName), buildRequestBody(template, prompt), endpoint);
+        return checkResponse(response);
+    }
 
-        int responseCode = conn.getResponseCode();
-        StringBuilder response = new StringBuilder();
+    /** Non-blocking variant of {@link #callGemini}; completes exceptionally on HTTP errors. */
+    private CompletableFuture<String> callGeminiAsync(String template, String prompt, String modelName) {
+        return transport.postJsonAsync(geminiUrl(modelName), buildRequestBody(template, prompt), endpoint)
+                .thenApply(this::checkResponse);
+    }
 
-        if (responseCode == HttpURLConnection.HTTP_OK) {
-            try (BufferedReader br = new BufferedReader(
-                    new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    response.append(line);
-                }
-            }
-        } else {
-            try (BufferedReader br = new BufferedReader(
-                    new InputStreamReader(conn.getErrorStream(), StandardCharsets.UTF_8))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    response.append(line);
-                }
-            }
-            logger.severe("[ATOX] Gemini API error (HTTP " + responseCode + "): " + response);
-            throw new RuntimeException("Gemini API returned HTTP " + responseCode);
+    /** Single-model call on whichever model the router picks, with the outcome reported back. */
+    private String callRouted(String template, String prompt) throws Exception {
+        String modelName = router.select(Collections.emptySet());
+        if (modelName == null) throw new IllegalStateException("every model's circuit is open");
+        long start = System.nanoTime();
+        try {
+            String body = callGemini(template, prompt, modelName);
+            router.recordSuccess(modelName, (System.nanoTime() - start) / 1_000_000L);
+            return body;
+        } catch (Exception e) {
+            recordError(modelName, e);
+            throw e;
         }
+    }
 
-        conn.disconnect();
-        return response.toString();
+    private CompletableFuture<String> callRoutedAsync(String template, String prompt) {
+        String modelName = router.select(Collections.emptySet());
+        if (modelName == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("every model's circuit is open"));
+        }
+        long start = System.nanoTime();
+        return callGeminiAsync(template, prompt, modelName).whenComplete((body, error) -> {
+            if (error == null) router.recordSuccess(modelName, (System.nanoTime() - start) / 1_000_000L);
+            else recordError(modelName, HttpTransport.unwrap(error));
+        });
     }
 
-    private List<Sanction> parseSanctions(String geminiResponse) {
-        List<Sanction> sanctions = new ArrayList<>();
+    private String checkResponse(HttpTransport.Response response) {
+        if (response.status != 200) {
+            logger.severe("[ATOX] Gemini API error (HTTP " + response.status + "): " + response.body);
+            throw new GeminiHttpException(response.status);
+        }
+        return response.body;
+    }
 
-        try {
-            JsonObject root = JsonParser.parseString(geminiResponse).getAsJsonObject();
-            JsonArray candidates = root.getAsJsonArray("candidates");
-            if (candidates == null || candidates.size() == 0) {
-                return sanctions;
+    private List<Sanction> requestSanctions(String prompt, String modelName, Consumer<Sanction> onSanction) throws Exception {
+        List<Sanction> sanctions = new ArrayList<>();
+        SanctionStreamParser parser = new SanctionStreamParser(sanction -> {
+            sanctions.add(sanction);
+            if (onSanction != null) onSanction.accept(sanction);
+        }, logger);
+        ResponseChunk chunk = new ResponseChunk();
+
+        if (streamResponses) {
+            try {
+                streamGemini(prompt, modelName, chunk, parser);
+            } catch (IOException e) {
+                // Connection dropped mid-answer: the players after the cut were never judged, so the
+                // whole request fails and its messages stay pending. Sanctions already forwarded were
+                // applied; the cycle's early-apply dedup keeps a failover or retry from applying them twice.
+                if (!sanctions.isEmpty()) {
+                    truncatedResponses.incrementAndGet();
+                    logger.warning("[ATOX] Gemini stream interrupted after " + sanctions.size()
+                            + " sanction(s), treating the answer as failed: " + e.getMessage());
+                }
+                throw e;
             }
+        } else {
+            StringBuilder text = new StringBuilder();
+            readChunk(callGemini(chatTemplate, prompt, modelName), chunk, text);
+            parser.feed(text);
+        }
 
-            JsonObject firstCandidate = candidates.get(0).getAsJsonObject();
-            JsonObject contentObj = firstCandidate.has("content")
-                    ? firstCandidate.getAsJsonObject("content") : null;
-
-            if (contentObj == null) {
-                String finishReason = firstCandidate.has("finishReason")
-                        ? firstCandidate.get("finishReason").getAsString() : "UNKNOWN";
-                throw new ModelBlockedException(finishReason);
+        if (!chunk.hasContent) {
+            if (chunk.hasCandidates) {
+                throw new ModelBlockedException(chunk.finishReason != null ? chunk.finishReason : "UNKNOWN");
             }
+            return sanctions;
+        }
+        malformedSanctions.addAndGet(parser.malformedCount());
+        if (parser.sawNoArray()) {
+            // Not an answer at all: fail so the messages are retried rather than read as "no sanctions"
+            unparseableResponses.incrementAndGet();
+            throw new JsonParseException("no JSON array in Gemini output");
+        }
+        responsesParsed.incrementAndGet();
+        if (!parser.isComplete()) {
+            truncatedResponses.incrementAndGet();
+            logger.warning("[ATOX] Gemini output was truncated (" + chunk.finishReason + "), keeping "
+                    + sanctions.size() + " complete sanction(s)");
+        }
+        return sanctions;
+    }
 
-            JsonArray partsArr = contentObj.getAsJsonArray("parts");
-            if (partsArr == null || partsArr.size() == 0) {
-                return sanctions;
+    /** Reads a server-sent event stream, feeding the answer text to the parser as it arrives. */
+    private void streamGemini(String prompt, String modelName, ResponseChunk chunk, SanctionStreamParser parser) throws Exception {
+        try (HttpTransport.StreamResponse response = transport.postJsonStream(geminiStreamUrl(modelName),
+                buildRequestBody(chatTemplate, prompt), endpoint)) {
+            if (response.status != 200) {
+                logger.severe("[ATOX] Gemini API error (HTTP " + response.status + "): " + response.readRemaining());
+                throw new GeminiHttpException(response.status);
             }
-
-            String text = partsArr.get(0).getAsJsonObject().get("text").getAsString().trim();
-
-            // Strip markdown code fences if present
-            if (text.startsWith("```")) {
-                text = text.replaceAll("^```[a-zA-Z]*\\n?", "").replaceAll("\\n?```$", "").trim();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(response.body, StandardCharsets.UTF_8));
+            StringBuilder text = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("data:")) continue;
+                text.setLength(0);
+                readChunk(line.substring(5), chunk, text);
+                parser.feed(text);
             }
+        }
+    }
 
-            JsonArray sanctionsArray = JsonParser.parseString(text).getAsJsonArray();
+    /** What was seen so far of one (possibly streamed) generateContent response. */
+    private static final class ResponseChunk {
+        boolean hasCandidates;
+        boolean hasContent;
+        String finishReason;
+    }
 
-            for (JsonElement elem : sanctionsArray) {
-                JsonObject obj = elem.getAsJsonObject();
-                String player = obj.get("player").getAsString();
-                String action = obj.get("action").getAsString().toUpperCase();
-                String reason = obj.get("reason").getAsString();
-                String triggerMessage = obj.has("trigger_message")
-                        ? obj.get("trigger_message").getAsString() : "N/A";
+    /**
+     * Walks one generateContent response with a streaming reader, appending the
+     * text parts of the first candidate to {@code text} without building a tree.
+     * A body that is not the expected JSON is a {@link JsonParseException}, never
+     * an IOException, so it is not mistaken for a transport error.
+     */
+    private static void readChunk(String json, ResponseChunk chunk, StringBuilder text) {
+        try {
+            readResponse(new JsonReader(new StringReader(json)), chunk, text);
+        } catch (IOException | IllegalStateException e) {
+            throw new JsonParseException(e);
+        }
+    }
 
-                String duration = obj.has("duration") && !obj.get("duration").isJsonNull()
-                        ? obj.get("duration").getAsString() : "";
+    private static void readResponse(JsonReader reader, ResponseChunk chunk, StringBuilder text) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("candidates") || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            if (reader.hasNext()) {
+                chunk.hasCandidates = true;
+                readCandidate(reader, chunk, text);
+            }
+            while (reader.hasNext()) reader.skipValue();
+            reader.endArray();
+        }
+        reader.endObject();
+    }
 
-                if (isValidAction(action)) {
-                    sanctions.add(new Sanction(player, action, reason, triggerMessage, duration));
+    private static void readCandidate(JsonReader reader, ResponseChunk chunk, StringBuilder text) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("finishReason") && reader.peek() == JsonToken.STRING) {
+                chunk.finishReason = reader.nextString();
+            } else if (name.equals("content") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                chunk.hasContent = true;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (!reader.nextName().equals("parts") || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            if (reader.nextName().equals("text") && reader.peek() == JsonToken.STRING) {
+                                text.append(reader.nextString());
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                    }
+                    reader.endArray();
                 }
+                reader.endObject();
+            } else {
+                reader.skipValue();
             }
-        } catch (Exception e) {
-            logger.warning("[ATOX] Error parsing Gemini response: " + e.getMessage());
         }
-
-        return sanctions;
+        reader.endObject();
     }
 
     /**
@@ -335,13 +701,53 @@ public class GeminiAnalyzer {
      * Returns a reason string if the name is offensive, or null if it's clean.
      */
     public String analyzeUsername(String playerName) {
-        String normalizedName = normalizeEvasion(playerName);
+        try {
+            return parseUsernameVerdict(callRouted(usernameTemplate, buildUsernamePrompt(playerName)));
+        } catch (Exception e) {
+            logger.warning("[ATOX] Error analyzing username: " + e.getMessage());
+        }
+        return null;
+    }
 
-        StringBuilder sb = new StringBuilder();
+    /**
+     * Non-blocking username check. Completes with the reason if the name is
+     * offensive or null if it is clean, and completes exceptionally if the API
+     * could not give a verdict.
+     */
+    public CompletableFuture<String> analyzeUsernameAsync(String playerName) {
+        return callRoutedAsync(usernameTemplate, buildUsernamePrompt(playerName))
+                .thenApply(this::parseUsernameVerdict);
+    }
+
+    private static String buildUsernameInstruction() {
+        StringBuilder sb = new StringBuilder(2048);
         sb.append("SYSTEM CONTEXT: You are a moderation system for a Minecraft server.\n");
         sb.append("You MUST always respond with a valid JSON, no exceptions.\n\n");
-        sb.append("Analyze the following Minecraft username. The threshold is VERY HIGH: only block names that are CLEARLY and SERIOUSLY offensive.\n\n");
-        sb.append("Username to analyze: \"").append(normalizedName).append("\"\n\n");
+        sb.append("Analyze the Minecraft username you are given. The threshold is VERY HIGH: only block names that are CLEARLY and SERIOUSLY offensive.\n\n");
+        appendUsernameRules(sb);
+        sb.append("Respond ONLY with this JSON (no markdown):\n");
+        sb.append("{\"offensive\": true/false, \"reason\": \"brief reason if offensive, empty if not\"}\n");
+        return sb.toString();
+    }
+
+    private static String buildUsernameBatchInstruction() {
+        StringBuilder sb = new StringBuilder(2048);
+        sb.append("SYSTEM CONTEXT: You are a moderation system for a Minecraft server.\n");
+        sb.append("You MUST always respond with a valid JSON, no exceptions.\n\n");
+        sb.append("Analyze the Minecraft usernames you are given, one per line. The threshold is VERY HIGH: only block names that are CLEARLY and SERIOUSLY offensive.\n\n");
+        appendUsernameRules(sb);
+        sb.append("Respond ONLY with a JSON array listing the OFFENSIVE names (no markdown). If none, respond: []\n");
+        sb.append("[{\"name\": \"exact username as listed (before any [normalized: ...] note)\", \"reason\": \"brief reason\"}]\n");
+        return sb.toString();
+    }
+
+    private String buildUsernamePrompt(String playerName) {
+        StringBuilder sb = promptBuffer();
+        sb.append("Username to analyze: \"").append(normalizeEvasion(playerName)).append("\"\n");
+        return sb.toString();
+    }
+
+    private static void appendUsernameRules(StringBuilder sb) {
         sb.append("BLOCK ONLY if the name EXPLICITLY contains ONE OF THESE WORDS:\n");
         sb.append("- Direct racial slur (e.g: n****r, n****, etc.)\n");
         sb.append("- Extremely explicit sexual insult (e.g: f****t, c***, etc.)\n");
@@ -354,36 +760,107 @@ public class GeminiAnalyzer {
         sb.append("- Numbers, underscores, symbols\n\n");
         sb.append("EXAMPLES OF NAMES THAT MUST BE ALLOWED: Fajardo, Garcia, Lopez, ShadowKing, NoobMaster, ProPlayer, ElChaca, ElLoco, DarkLord, Gamer123\n\n");
         sb.append("ABSOLUTE GOLDEN RULE: If the word is not on the explicit slur list, DO NOT BLOCK. Default to offensive=false.\n\n");
-        sb.append("Respond ONLY with this JSON (no markdown):\n");
-        sb.append("{\"offensive\": true/false, \"reason\": \"brief reason if offensive, empty if not\"}\n");
+    }
+
+    /**
+     * Screens many usernames in one request. Returns a verdict for every name
+     * (reason if offensive, empty string if clean), or null on API error.
+     */
+    public Map<String, String> analyzeUsernames(List<String> playerNames) {
+        StringBuilder sb = promptBuffer();
+        sb.append("Usernames to analyze:\n");
+        for (String name : playerNames) {
+            sb.append("- ").append(normalizeEvasion(name)).append("\n");
+        }
 
+        String text;
         try {
-            String response = callGemini(sb.toString(), model);
-            JsonObject root = com.google.gson.JsonParser.parseString(response).getAsJsonObject();
-            JsonArray candidates = root.getAsJsonArray("candidates");
-            if (candidates == null || candidates.size() == 0) return null;
-            JsonObject content = candidates.get(0).getAsJsonObject().has("content")
-                    ? candidates.get(0).getAsJsonObject().getAsJsonObject("content") : null;
-            if (content == null) return null;
-            JsonArray parts = content.getAsJsonArray("parts");
-            if (parts == null || parts.size() == 0) return null;
-            String text = parts.get(0).getAsJsonObject().get("text").getAsString().trim();
-            if (text.startsWith("```")) {
-                text = text.replaceAll("^```[a-zA-Z]*\\n?", "").replaceAll("\\n?```$", "").trim();
+            text = extractResponseText(callRouted(usernameBatchTemplate, sb.toString()));
+        } catch (Exception e) {
+            logger.warning("[ATOX] Error analyzing username batch: " + e.getMessage());
+            return null;
+        }
+        if (text == null) return null;
+
+        try {
+            FlaggedName[] flagged = GSON.fromJson(text, FlaggedName[].class);
+            responsesParsed.incrementAndGet();
+
+            Map<String, String> byLowerName = new LinkedHashMap<>();
+            for (String name : playerNames) {
+                byLowerName.put(name.toLowerCase(), name);
             }
-            JsonObject result = com.google.gson.JsonParser.parseString(text).getAsJsonObject();
-            if (result.has("offensive") && result.get("offensive").getAsBoolean()) {
-                return result.has("reason") ? result.get("reason").getAsString() : "Inappropriate username";
+            Map<String, String> verdicts = new LinkedHashMap<>();
+            for (String name : playerNames) {
+                verdicts.put(name, "");
             }
-        } catch (Exception e) {
-            logger.warning("[ATOX] Error analyzing username: " + e.getMessage());
+            for (FlaggedName f : flagged != null ? flagged : new FlaggedName[0]) {
+                if (f == null || f.name == null) continue;
+                String listed = byLowerName.get(f.name.trim().toLowerCase());
+                if (listed == null) continue;
+                verdicts.put(listed, f.reason == null || f.reason.isEmpty() ? "Inappropriate username" : f.reason);
+            }
+            return verdicts;
+        } catch (JsonParseException e) {
+            unparseableResponses.incrementAndGet();
+            logger.warning("[ATOX] Error parsing username batch response: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** Text of the first candidate, with markdown fences stripped outside structured mode, or null. */
+    private String extractResponseText(String response) {
+        ResponseChunk chunk = new ResponseChunk();
+        StringBuilder sb = new StringBuilder();
+        readChunk(response, chunk, sb);
+        if (!chunk.hasContent || sb.length() == 0) return null;
+        String text = sb.toString().trim();
+        if (!structuredOutput && text.startsWith("```")) {
+            text = text.replaceAll("^```[a-zA-Z]*\\n?", "").replaceAll("\\n?```$", "").trim();
+        }
+        return text;
+    }
+
+    private String parseUsernameVerdict(String response) {
+        String text = extractResponseText(response);
+        if (text == null) return null;
+        UsernameVerdict verdict;
+        try {
+            verdict = GSON.fromJson(text, UsernameVerdict.class);
+        } catch (JsonParseException e) {
+            unparseableResponses.incrementAndGet();
+            throw e;
+        }
+        if (verdict == null) {
+            unparseableResponses.incrementAndGet();
+            throw new JsonParseException("empty username verdict");
+        }
+        responsesParsed.incrementAndGet();
+        if (verdict.offensive) {
+            return verdict.reason != null && !verdict.reason.isEmpty() ? verdict.reason : "Inappropriate username";
         }
         return null;
     }
 
-    private boolean isValidAction(String action) {
-        return action.equals("WARN") || action.equals("MUTE")
-                || action.equals("KICK") || action.equals("BAN") || action.equals("IPBAN");
+    // Shapes of the username answers, decoded directly by Gson
+    private static final class UsernameVerdict {
+        boolean offensive;
+        String reason;
+    }
+
+    private static final class FlaggedName {
+        String name;
+        String reason;
+    }
+
+    public ModelRouter getRouter() {
+        return router;
+    }
+
+    /** One-line summary of how Gemini answers parsed since the last reload. */
+    public String getParseStats() {
+        return responsesParsed.get() + " parsed, " + unparseableResponses.get() + " unparseable, "
+                + truncatedResponses.get() + " truncated, " + malformedSanctions.get() + " malformed sanction(s)";
     }
 
     public static class Sanction {
@@ -0,0 +1,277 @@
+package com.antitoxicity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Shared HTTP layer for Gemini and Discord. One pooled, keep-alive
+ * {@link HttpClient} (HTTP/2 where the server supports it) so connections and
+ * TLS sessions are reused across calls. Responses are requested gzip-encoded
+ * and request bodies can be gzipped per endpoint.
+ */
+public class HttpTransport {
+
+    // Below this size compressing the request costs more than it saves
+    private static final int GZIP_MIN_BYTES = 1024;
+
+    // Closes streamed bodies that stop delivering data; request timeouts end at the headers
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ATOX-HTTP-Watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final ExecutorService executor;
+    private final HttpClient client;
+
+    public HttpTransport(Duration connectTimeout) {
+        // Own executor rather than the client's default, so shutdown() can stop its threads
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "ATOX-HTTP");
+            t.setDaemon(true);
+            return t;
+        });
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(executor)
+                .build();
+    }
+
+    /**
+     * Stops the client's threads and aborts calls still in flight. Called once
+     * on disable; the instance is reused across reloads and unusable afterwards.
+     */
+    public void shutdown() {
+        try {
+            // Java 21+; older clients have no shutdown and their selector thread ends once unreachable
+            HttpClient.class.getMethod("shutdownNow").invoke(client);
+        } catch (ReflectiveOperationException ignored) {
+        }
+        executor.shutdownNow();
+    }
+
+    /** Per-endpoint settings. */
+    public static final class Endpoint {
+        final Duration timeout;
+        final boolean gzipRequests;
+
+        public Endpoint(Duration timeout, boolean gzipRequests) {
+            this.timeout = timeout;
+            this.gzipRequests = gzipRequests;
+        }
+    }
+
+    public static final class Response {
+        public final int status;
+        public final String body;
+        public final HttpHeaders headers;
+
+        Response(int status, String body, HttpHeaders headers) {
+            this.status = status;
+            this.body = body;
+            this.headers = headers;
+        }
+
+        public boolean isSuccess() {
+            return status >= 200 && status < 300;
+        }
+    }
+
+    /** A response whose body is read incrementally; must be closed by the caller. */
+    public static final class StreamResponse implements AutoCloseable {
+        public final int status;
+        public final InputStream body;
+
+        StreamResponse(int status, InputStream body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        /** Reads whatever is left of the body, for error messages. */
+        public String readRemaining() throws IOException {
+            return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+
+    /** POSTs a JSON body; completes with the response whatever its status code. */
+    public CompletableFuture<Response> postJsonAsync(String url, String json, Endpoint endpoint) {
+        return client.sendAsync(buildRequest(url, json, endpoint), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(HttpTransport::decode);
+    }
+
+    /** Blocking variant for callers that already run off the main thread. */
+    public Response postJson(String url, String json, Endpoint endpoint) throws IOException, InterruptedException {
+        try {
+            return decode(client.send(buildRequest(url, json, endpoint), HttpResponse.BodyHandlers.ofByteArray()));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Blocking POST that returns as soon as the headers arrive, with the body
+     * exposed as a (gzip-decoded) stream. Used for server-sent event responses.
+     * A read that gets no data for the endpoint timeout fails with an IOException.
+     */
+    public StreamResponse postJsonStream(String url, String json, Endpoint endpoint) throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = client.send(buildRequest(url, json, endpoint),
+                HttpResponse.BodyHandlers.ofInputStream());
+        InputStream body = new IdleTimeoutStream(response.body(), endpoint.timeout.toMillis());
+        boolean gzipped = response.headers().firstValue("Content-Encoding")
+                .map(v -> v.equalsIgnoreCase("gzip")).orElse(false);
+        if (gzipped) {
+            body = new GZIPInputStream(body);
+        }
+        return new StreamResponse(response.statusCode(), body);
+    }
+
+    /**
+     * Fails a read that has been waiting for data longer than the idle limit:
+     * the watchdog closes the stream and interrupts the blocked reader, and the
+     * read throws instead of blocking the caller's thread forever.
+     */
+    private static final class IdleTimeoutStream extends FilterInputStream {
+        private final long idleMillis;
+        private volatile long lastData = System.currentTimeMillis();
+        private Thread reader; // Guarded by this
+        private boolean timedOut; // Guarded by this
+        private boolean done; // Closed or timed out; guarded by this
+
+        IdleTimeoutStream(InputStream in, long idleMillis) {
+            super(in);
+            this.idleMillis = Math.max(1000, idleMillis);
+            WATCHDOG.schedule(this::check, this.idleMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void check() {
+            synchronized (this) {
+                if (done) return;
+                long idle = System.currentTimeMillis() - lastData;
+                if (idle < idleMillis) {
+                    WATCHDOG.schedule(this::check, idleMillis - idle, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                done = timedOut = true;
+                if (reader != null) reader.interrupt();
+            }
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            synchronized (this) {
+                if (timedOut) throw timeout();
+                reader = Thread.currentThread();
+            }
+            try {
+                int n = in.read(b, off, len);
+                lastData = System.currentTimeMillis();
+                return n;
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (timedOut) throw timeout();
+                }
+                throw e;
+            } finally {
+                synchronized (this) {
+                    reader = null;
+                    // The interrupt was ours, not the caller's
+                    if (timedOut) Thread.interrupted();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                done = true;
+            }
+            in.close();
+        }
+
+        private IOException timeout() {
+            return new IOException("no data received for " + idleMillis + "ms");
+        }
+    }
+
+    /** Unwraps the exception a failed {@link #postJsonAsync} future completes with. */
+    public static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private HttpRequest buildRequest(String url, String json, Endpoint endpoint) {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
+                .timeout(endpoint.timeout)
+                .header("Content-Type", "application/json; charset=UTF-8")
+                .header("Accept-Encoding", "gzip");
+        if (endpoint.gzipRequests && body.length >= GZIP_MIN_BYTES) {
+            body = gzip(body);
+            builder.header("Content-Encoding", "gzip");
+        }
+        return builder.POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+    }
+
+    private static Response decode(HttpResponse<byte[]> response) {
+        byte[] raw = response.body();
+        boolean gzipped = response.headers().firstValue("Content-Encoding")
+                .map(v -> v.equalsIgnoreCase("gzip")).orElse(false);
+        String body;
+        if (gzipped && raw.length > 0) {
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(raw))) {
+                body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not decompress response body", e);
+            }
+        } else {
+            body = new String(raw, StandardCharsets.UTF_8);
+        }
+        return new Response(response.statusCode(), body, response.headers());
+    }
+
+    private static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
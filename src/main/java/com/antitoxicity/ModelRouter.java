@@ -0,0 +1,215 @@
+package com.antitoxicity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * Chooses which Gemini model serves each request. Every model has a circuit
+ * breaker: after a run of consecutive failures it is skipped for a backoff
+ * period that doubles (with jitter) each time it trips again, and then gets a
+ * single probe request. Among the healthy models the choice is weighted by
+ * inverse smoothed latency, so the faster model takes most of the traffic
+ * without starving the others of the samples they need.
+ */
+public class ModelRouter {
+
+    private static final int LATENCY_SAMPLES = 256;
+    private static final double EWMA_ALPHA = 0.2;
+    private static final long DEFAULT_LATENCY_MILLIS = 2000;
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /** Health and latency bookkeeping for one model. All access is under the instance lock. */
+    static final class Route {
+        final String model;
+        State state = State.CLOSED;
+        int consecutiveFailures;
+        int trips;
+        long openUntil;
+        boolean probeInFlight;
+        double ewmaMillis = -1;
+        final long[] samples = new long[LATENCY_SAMPLES];
+        int sampleCount;
+        int sampleNext;
+        long successes;
+        long failures;
+        long blocked;
+        long badAnswers;
+
+        Route(String model) {
+            this.model = model;
+        }
+    }
+
+    private final Map<String, Route> routes = new LinkedHashMap<>();
+    private final Logger logger;
+    private final int failureThreshold;
+    private final long baseOpenMillis;
+    private final long maxOpenMillis;
+
+    public ModelRouter(Collection<String> models, Logger logger, int failureThreshold,
+                       long baseOpenMillis, long maxOpenMillis) {
+        for (String model : models) {
+            if (model != null && !model.isEmpty()) routes.putIfAbsent(model, new Route(model));
+        }
+        this.logger = logger;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.baseOpenMillis = Math.max(100, baseOpenMillis);
+        this.maxOpenMillis = Math.max(this.baseOpenMillis, maxOpenMillis);
+    }
+
+    public int size() {
+        return routes.size();
+    }
+
+    /**
+     * Picks a model that is not in {@code exclude} and whose breaker lets a
+     * request through, or null if there is none.
+     */
+    public synchronized String select(Collection<String> exclude) {
+        long now = System.currentTimeMillis();
+        List<Route> candidates = new ArrayList<>(routes.size());
+        Route probe = null;
+        for (Route r : routes.values()) {
+            if (exclude.contains(r.model)) continue;
+            if (r.state == State.OPEN && now >= r.openUntil) {
+                r.state = State.HALF_OPEN;
+            }
+            if (r.state == State.CLOSED) {
+                candidates.add(r);
+            } else if (r.state == State.HALF_OPEN && !r.probeInFlight && probe == null) {
+                probe = r;
+            }
+        }
+
+        // A model that just came out of its backoff gets its probe before anything else
+        if (probe != null) {
+            probe.probeInFlight = true;
+            return probe.model;
+        }
+        if (candidates.isEmpty()) return null;
+        if (candidates.size() == 1) return candidates.get(0).model;
+
+        double known = DEFAULT_LATENCY_MILLIS;
+        for (Route r : candidates) {
+            if (r.ewmaMillis > 0) known = Math.min(known, r.ewmaMillis);
+        }
+        double[] weights = new double[candidates.size()];
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            double latency = candidates.get(i).ewmaMillis > 0 ? candidates.get(i).ewmaMillis : known;
+            weights[i] = 1.0 / Math.max(1.0, latency);
+            total += weights[i];
+        }
+        double pick = ThreadLocalRandom.current().nextDouble(total);
+        for (int i = 0; i < weights.length; i++) {
+            pick -= weights[i];
+            if (pick < 0) return candidates.get(i).model;
+        }
+        return candidates.get(candidates.size() - 1).model;
+    }
+
+    public synchronized void recordSuccess(String model, long latencyMillis) {
+        Route r = routes.get(model);
+        if (r == null) return;
+        r.successes++;
+        r.consecutiveFailures = 0;
+        r.probeInFlight = false;
+        if (r.state != State.CLOSED) {
+            logger.info("[ATOX] Model " + model + " recovered, circuit closed.");
+            r.state = State.CLOSED;
+            r.trips = 0;
+        }
+        r.ewmaMillis = r.ewmaMillis < 0 ? latencyMillis : r.ewmaMillis + EWMA_ALPHA * (latencyMillis - r.ewmaMillis);
+        r.samples[r.sampleNext] = latencyMillis;
+        r.sampleNext = (r.sampleNext + 1) % LATENCY_SAMPLES;
+        if (r.sampleCount < LATENCY_SAMPLES) r.sampleCount++;
+    }
+
+    /** Transport or HTTP failure (429, 5xx, timeout). Trips the breaker after enough in a row. */
+    public synchronized void recordFailure(String model, String cause) {
+        Route r = routes.get(model);
+        if (r == null) return;
+        r.failures++;
+        r.consecutiveFailures++;
+        r.probeInFlight = false;
+        if (r.state == State.HALF_OPEN || r.consecutiveFailures >= failureThreshold) {
+            r.trips++;
+            long openFor = jitter(Math.min(maxOpenMillis, baseOpenMillis << Math.min(r.trips - 1, 20)));
+            r.state = State.OPEN;
+            r.openUntil = System.currentTimeMillis() + openFor;
+            logger.warning("[ATOX] Model " + model + " circuit opened for " + ((openFor + 999) / 1000) + "s after "
+                    + r.consecutiveFailures + " failure(s): " + cause);
+        }
+    }
+
+    /** The model refused to answer (safety block). Says nothing about its health. */
+    public synchronized void recordBlocked(String model) {
+        Route r = routes.get(model);
+        if (r == null) return;
+        r.blocked++;
+        r.probeInFlight = false;
+    }
+
+    /** The model answered, but not usably (unparseable output, rejected request). Says nothing about its health. */
+    public synchronized void recordBadAnswer(String model) {
+        Route r = routes.get(model);
+        if (r == null) return;
+        r.badAnswers++;
+        r.probeInFlight = false;
+    }
+
+    /** Delay before the next attempt of one request: exponential from 500 ms, full jitter. */
+    public long backoffMillis(int attempt) {
+        long cap = Math.min(8000L, 500L << Math.min(attempt, 10));
+        return ThreadLocalRandom.current().nextLong(cap / 2, cap + 1);
+    }
+
+    /** Expected latency (p95) of a model, used to decide when to hedge. */
+    public synchronized long p95Millis(String model) {
+        Route r = routes.get(model);
+        if (r == null || r.sampleCount == 0) return DEFAULT_LATENCY_MILLIS;
+        return percentiles(r, 0.95)[0];
+    }
+
+    /** One line per model: breaker state, latency percentiles and counters. */
+    public synchronized List<String> describe() {
+        long now = System.currentTimeMillis();
+        List<String> lines = new ArrayList<>(routes.size());
+        for (Route r : routes.values()) {
+            StringBuilder sb = new StringBuilder(r.model).append(": ").append(r.state);
+            if (r.state == State.OPEN) {
+                sb.append(" (").append(Math.max(0, (r.openUntil - now) / 1000)).append("s)");
+            }
+            if (r.sampleCount > 0) {
+                long[] p = percentiles(r, 0.50, 0.95, 0.99);
+                sb.append(", p50 ").append(p[0]).append("ms p95 ").append(p[1]).append("ms p99 ").append(p[2]).append("ms");
+            }
+            sb.append(", ").append(r.successes).append(" ok / ").append(r.failures).append(" failed / ")
+                    .append(r.blocked).append(" blocked / ").append(r.badAnswers).append(" unusable");
+            lines.add(sb.toString());
+        }
+        return lines;
+    }
+
+    private static long[] percentiles(Route r, double... qs) {
+        long[] sorted = Arrays.copyOf(r.samples, r.sampleCount);
+        Arrays.sort(sorted);
+        long[] out = new long[qs.length];
+        for (int i = 0; i < qs.length; i++) {
+            int idx = (int) Math.ceil(qs[i] * sorted.length) - 1;
+            out[i] = sorted[Math.max(0, Math.min(sorted.length - 1, idx))];
+        }
+        return out;
+    }
+
+    private static long jitter(long millis) {
+        return millis / 2 + ThreadLocalRandom.current().nextLong(millis / 2 + 1);
+    }
+}
@@ -0,0 +1,233 @@
+package com.antitoxicity;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cheap local scoring stage in front of Gemini. Each message is matched against
+ * an Aho-Corasick keyword automaton (over the {@link GeminiAnalyzer#normalizeEvasion}
+ * output) plus a few heuristics for personal data. Only players with at least
+ * one suspicious message are sent to the AI; their benign lines ride along as
+ * context. Everything else is consumed locally, so the keyword list has to
+ * cover every language spoken on the server; it is off by default.
+ */
+public class PreFilter {
+
+    // Alphabet of the automaton: a-z, 0-9 and a space standing in for every other character
+    private static final int ALPHABET = 37;
+    private static final int SPACE = 36;
+
+    private final int[][] transitions;
+    private final boolean[] terminal;
+    private final int severeScore;
+
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong flagged = new AtomicLong();
+    // What route() actually forwards: every message of a player with a hit, as analyzed lines or context
+    private final AtomicLong routedMessages = new AtomicLong();
+    private final AtomicLong forwardedMessages = new AtomicLong();
+
+    public PreFilter(List<String> keywords, int severeScore) {
+        this.severeScore = Math.max(1, severeScore);
+        List<int[]> gotoTable = new ArrayList<>();
+        List<Boolean> out = new ArrayList<>();
+        gotoTable.add(newRow());
+        out.add(false);
+
+        // Trie
+        for (String keyword : keywords) {
+            String k = keyword.toLowerCase(Locale.ROOT);
+            if (k.trim().isEmpty()) continue;
+            int state = 0;
+            for (int i = 0; i < k.length(); i++) {
+                int c = index(k.charAt(i));
+                if (gotoTable.get(state)[c] < 0) {
+                    gotoTable.get(state)[c] = gotoTable.size();
+                    gotoTable.add(newRow());
+                    out.add(false);
+                }
+                state = gotoTable.get(state)[c];
+            }
+            out.set(state, true);
+        }
+
+        // Failure links, folded into a full transition table (a DFA)
+        int[][] delta = gotoTable.toArray(new int[0][]);
+        boolean[] match = new boolean[delta.length];
+        int[] fail = new int[delta.length];
+        for (int i = 0; i < match.length; i++) match[i] = out.get(i);
+
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < ALPHABET; c++) {
+            if (delta[0][c] < 0) {
+                delta[0][c] = 0;
+            } else {
+                fail[delta[0][c]] = 0;
+                queue.add(delta[0][c]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            match[state] |= match[fail[state]];
+            for (int c = 0; c < ALPHABET; c++) {
+                int next = delta[state][c];
+                if (next < 0) {
+                    delta[state][c] = delta[fail[state]][c];
+                } else {
+                    fail[next] = delta[fail[state]][c];
+                    queue.add(next);
+                }
+            }
+        }
+
+        this.transitions = delta;
+        this.terminal = match;
+    }
+
+    private static int[] newRow() {
+        int[] row = new int[ALPHABET];
+        java.util.Arrays.fill(row, -1);
+        return row;
+    }
+
+    private static int index(char c) {
+        if (c >= 'a' && c <= 'z') return c - 'a';
+        if (c >= 'A' && c <= 'Z') return c - 'A';
+        if (c >= '0' && c <= '9') return 26 + (c - '0');
+        return SPACE;
+    }
+
+    /** Players to send to the AI, and the context to send with them. */
+    public static final class Routing {
+        public final Map<String, List<String>> suspicious;
+        public final Map<String, List<String>> context;
+        public final int skippedMessages;
+        /** Players with at least one message scoring at or above the severe threshold. */
+        public final Set<String> severePlayers;
+
+        Routing(Map<String, List<String>> suspicious, Map<String, List<String>> context, int skippedMessages,
+                Set<String> severePlayers) {
+            this.suspicious = suspicious;
+            this.context = context;
+            this.skippedMessages = skippedMessages;
+            this.severePlayers = severePlayers;
+        }
+    }
+
+    /**
+     * Splits a batch into suspicious messages (sent to the AI) and benign ones.
+     * A suspicious player's benign lines from the batch are appended to their
+     * context; players with nothing suspicious are dropped entirely.
+     */
+    public Routing route(Map<String, List<String>> messagesByPlayer, Map<String, List<String>> contextMessages) {
+        Map<String, List<String>> suspicious = new LinkedHashMap<>();
+        Map<String, List<String>> context = new LinkedHashMap<>();
+        Set<String> severe = new HashSet<>();
+        int skipped = 0;
+        int forwarded = 0;
+
+        for (Map.Entry<String, List<String>> entry : messagesByPlayer.entrySet()) {
+            List<String> hits = new ArrayList<>();
+            List<String> benign = new ArrayList<>();
+            for (String msg : entry.getValue()) {
+                int score = score(msg);
+                if (score >= severeScore) severe.add(entry.getKey());
+                if (score > 0) hits.add(msg);
+                else benign.add(msg);
+            }
+
+            if (hits.isEmpty()) {
+                skipped += benign.size();
+                continue;
+            }
+
+            forwarded += hits.size() + benign.size();
+            suspicious.put(entry.getKey(), hits);
+            List<String> ctx = new ArrayList<>();
+            if (contextMessages != null && contextMessages.get(entry.getKey()) != null) {
+                ctx.addAll(contextMessages.get(entry.getKey()));
+            }
+            ctx.addAll(benign);
+            context.put(entry.getKey(), ctx);
+        }
+        routedMessages.addAndGet(skipped + forwarded);
+        forwardedMessages.addAndGet(forwarded);
+        return new Routing(suspicious, context, skipped, severe);
+    }
+
+    /** Number of reasons the message looks suspicious; 0 means clearly benign. */
+    public int score(String message) {
+        scanned.incrementAndGet();
+        int score = rank(message);
+        if (score > 0) flagged.incrementAndGet();
+        return score;
+    }
+
+    /** Same value as {@link #score} without touching the routing counters; used to rank the backlog. */
+    public int rank(String message) {
+        int score = countKeywordHits(GeminiAnalyzer.normalizeEvasion(message));
+        if (looksLikePersonalData(message)) score++;
+        return score;
+    }
+
+    private int countKeywordHits(String text) {
+        int hits = 0;
+        // Virtual leading/trailing space so " word " keywords match at the edges
+        int state = transitions[0][SPACE];
+        for (int i = 0; i < text.length(); i++) {
+            state = transitions[state][index(text.charAt(i))];
+            if (terminal[state]) hits++;
+        }
+        state = transitions[state][SPACE];
+        if (terminal[state]) hits++;
+        return hits;
+    }
+
+    /** Phone numbers (9+ digits in one token) and IPv4 addresses. */
+    static boolean looksLikePersonalData(String message) {
+        int digits = 0;
+        int dotGroups = 0;
+        int groupDigits = 0;
+        for (int i = 0; i <= message.length(); i++) {
+            char c = i < message.length() ? message.charAt(i) : ' ';
+            if (c >= '0' && c <= '9') {
+                digits++;
+                groupDigits++;
+            } else if (c == '.' && groupDigits > 0 && groupDigits <= 3) {
+                dotGroups++;
+                groupDigits = 0;
+            } else if (c == '-' || c == '(' || c == ')' || c == '+' || c == '.') {
+                groupDigits = 0;
+            } else {
+                if (digits >= 9) return true;
+                if (dotGroups == 3 && groupDigits > 0 && groupDigits <= 3) return true;
+                digits = 0;
+                dotGroups = 0;
+                groupDigits = 0;
+            }
+        }
+        return false;
+    }
+
+    public long getScanned() { return scanned.get(); }
+    public long getFlagged() { return flagged.get(); }
+
+    public long getRouted() { return routedMessages.get(); }
+
+    /**
+     * Percentage of routed cycle messages that reached the AI, either as a
+     * flagged line or as context for a flagged player.
+     */
+    public double getHitRate() {
+        long total = routedMessages.get();
+        return total == 0 ? 0.0 : forwardedMessages.get() * 100.0 / total;
+    }
+}
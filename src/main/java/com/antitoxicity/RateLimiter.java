@@ -0,0 +1,60 @@
+package com.antitoxicity;
+
+/**
+ * Token bucket that allows a fixed number of permits per minute, refilled
+ * continuously so calls are spread out instead of bursting at the start of
+ * every minute.
+ */
+public class RateLimiter {
+
+    private final double capacity;
+    private final double permitsPerMilli;
+    private double available;
+    private long lastRefill;
+
+    public RateLimiter(int permitsPerMinute) {
+        this.capacity = Math.max(1, permitsPerMinute);
+        this.permitsPerMilli = capacity / 60000.0;
+        this.available = capacity;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    /** Takes a permit if one is available right now. */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (available >= 1.0) {
+            available -= 1.0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Waits until a permit is available and takes it. Returns false, with the
+     * interrupt flag restored, if the thread was interrupted while waiting.
+     */
+    public boolean acquire() {
+        while (!tryAcquire()) {
+            try {
+                Thread.sleep(Math.max(50, millisUntilNextPermit()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Milliseconds until the next permit becomes available, 0 if one is available now. */
+    public synchronized long millisUntilNextPermit() {
+        refill();
+        if (available >= 1.0) return 0;
+        return (long) Math.ceil((1.0 - available) / permitsPerMilli);
+    }
+
+    private void refill() {
+        long now = System.currentTimeMillis();
+        available = Math.min(capacity, available + (now - lastRefill) * permitsPerMilli);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,99 @@
+package com.antitoxicity;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers which (player, message) pairs were captured in the last few
+ * hundred milliseconds, so the legacy and modern chat events for the same line
+ * are only stored once.
+ *
+ * <p>Each pair is hashed to 64 bits and kept in a fixed open-addressing table of
+ * packed longs: the upper 40 bits are a fingerprint of the hash, the lower 24
+ * bits the time bucket of the last capture. Slots are claimed and refreshed
+ * with CAS, nothing is allocated per message, and an expired slot is simply
+ * overwritten by the next pair that probes it, so the table never needs a
+ * sweep. A fingerprint collision can at worst drop one identical-looking line
+ * inside the window.
+ */
+final class RecentCaptureTable {
+
+    private static final int BUCKET_BITS = 24;
+    private static final long BUCKET_MASK = (1L << BUCKET_BITS) - 1;
+    private static final long BUCKET_MILLIS = 50;
+    private static final int MAX_PROBES = 8;
+
+    private final AtomicLongArray slots;
+    private final int mask;
+    private final long windowBuckets;
+
+    /**
+     * @param capacity slot count, rounded up to a power of two
+     * @param windowMillis how long a captured pair counts as a duplicate
+     */
+    RecentCaptureTable(int capacity, long windowMillis) {
+        int size = Integer.highestOneBit(Math.max(64, capacity - 1) << 1);
+        this.slots = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.windowBuckets = Math.max(1, (windowMillis + BUCKET_MILLIS - 1) / BUCKET_MILLIS);
+    }
+
+    /**
+     * Records a capture of {@code message} by {@code player} at {@code nowMillis}.
+     *
+     * @return true if the same pair was already captured within the window
+     */
+    boolean checkAndMark(UUID player, String message, long nowMillis) {
+        long hash = hash(player, message);
+        long fingerprint = hash >>> BUCKET_BITS;
+        if (fingerprint == 0) fingerprint = 1; // 0 marks an empty slot
+        long bucket = (nowMillis / BUCKET_MILLIS) & BUCKET_MASK;
+        long packed = (fingerprint << BUCKET_BITS) | bucket;
+
+        int start = (int) hash & mask;
+        int reusable = -1;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int i = (start + probe) & mask;
+            long current = slots.get(i);
+            boolean live = current != 0 && age(current, bucket) < windowBuckets;
+            if (current != 0 && (current >>> BUCKET_BITS) == fingerprint) {
+                if (live) return true;
+                // Same pair, but outside the window: refresh in place
+                slots.compareAndSet(i, current, packed);
+                return false;
+            }
+            if (!live && reusable < 0) reusable = i;
+        }
+
+        if (reusable >= 0) {
+            long current = slots.get(reusable);
+            if (current == 0 || age(current, bucket) >= windowBuckets) {
+                slots.compareAndSet(reusable, current, packed);
+            }
+        } else {
+            // Every probed slot is live (a burst): displace the home slot
+            slots.set(start, packed);
+        }
+        return false;
+    }
+
+    private static long age(long slot, long bucket) {
+        return (bucket - (slot & BUCKET_MASK)) & BUCKET_MASK;
+    }
+
+    /** FNV-1a over the UUID and the message chars, finished with a 64-bit mixer. */
+    static long hash(UUID player, String message) {
+        long h = 0xcbf29ce484222325L;
+        h = (h ^ player.getMostSignificantBits()) * 0x100000001b3L;
+        h = (h ^ player.getLeastSignificantBits()) * 0x100000001b3L;
+        for (int i = 0, n = message.length(); i < n; i++) {
+            h = (h ^ message.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,193 @@
+package com.antitoxicity;
+
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.logging.Logger;
+
+/**
+ * Runs sanction commands on the main thread without stalling a tick. Sanctions
+ * from any thread are queued most severe first (IPBAN, BAN, KICK, MUTE, WARN,
+ * then arrival order), and each tick runs commands only until the configured
+ * time budget is used, so a large cycle is spread over several ticks instead
+ * of one spike. At least one command runs per tick so the queue always moves.
+ * Execution time is recorded per action.
+ */
+public class SanctionExecutor {
+
+    private static final String[] ACTIONS = {"WARN", "MUTE", "KICK", "BAN", "IPBAN"};
+
+    private static final class Pending {
+        final GeminiAnalyzer.Sanction sanction;
+        final int severity;
+        final long order;
+        final long queuedAt;
+
+        Pending(GeminiAnalyzer.Sanction sanction, long order) {
+            this.sanction = sanction;
+            this.severity = severityOf(sanction.action);
+            this.order = order;
+            this.queuedAt = System.nanoTime();
+        }
+    }
+
+    /** Per-action execution times in microseconds. Guarded by the executor lock. */
+    private static final class Latency {
+        long count;
+        long totalMicros;
+        long maxMicros;
+        long maxWaitMillis;
+    }
+
+    private final AntiToxicity plugin;
+    private final Logger logger;
+    // Read once per tick; changed by a config reload
+    private volatile long budgetNanos;
+    private final PriorityQueue<Pending> queue = new PriorityQueue<>((a, b) ->
+            a.severity != b.severity ? b.severity - a.severity : Long.compare(a.order, b.order));
+    private final Latency[] latency = new Latency[ACTIONS.length];
+    private long submitted;
+    private BukkitTask drainTask;
+
+    public SanctionExecutor(AntiToxicity plugin, long budgetMillis) {
+        this.plugin = plugin;
+        this.logger = plugin.getLogger();
+        setBudgetMillis(budgetMillis);
+        for (int i = 0; i < latency.length; i++) latency[i] = new Latency();
+    }
+
+    /** Changes the per-tick time budget; takes effect from the next tick. */
+    public void setBudgetMillis(long budgetMillis) {
+        this.budgetNanos = Math.max(1, budgetMillis) * 1_000_000L;
+    }
+
+    /** Queues a sanction for execution. Safe to call from any thread. */
+    public void submit(GeminiAnalyzer.Sanction sanction) {
+        synchronized (this) {
+            queue.add(new Pending(sanction, submitted++));
+            if (drainTask != null) return;
+        }
+        // Scheduling from an async thread is fine; the drain itself runs on the main thread
+        BukkitTask task = Bukkit.getScheduler().runTaskTimer(plugin, this::drain, 0L, 1L);
+        synchronized (this) {
+            if (drainTask == null) {
+                drainTask = task;
+                return;
+            }
+        }
+        task.cancel();
+    }
+
+    public void submitAll(List<GeminiAnalyzer.Sanction> sanctions) {
+        for (GeminiAnalyzer.Sanction s : sanctions) submit(s);
+    }
+
+    /** Main thread, once per tick while anything is queued. */
+    private void drain() {
+        long budget = budgetNanos;
+        long start = System.nanoTime();
+        int ran = 0;
+        while (true) {
+            Pending next;
+            synchronized (this) {
+                if (ran > 0 && System.nanoTime() - start >= budget) break;
+                next = queue.poll();
+                if (next == null) {
+                    if (drainTask != null) drainTask.cancel();
+                    drainTask = null;
+                    break;
+                }
+            }
+            execute(next);
+            ran++;
+        }
+        int left = pending();
+        if (left > 0 && plugin.isDebug()) {
+            logger.info("[ATOX] Tick budget used after " + ran + " sanction(s), " + left + " left for next tick");
+        }
+    }
+
+    private void execute(Pending pending) {
+        GeminiAnalyzer.Sanction sanction = pending.sanction;
+        String cmd = plugin.buildCommand(sanction);
+        if (cmd == null) {
+            logger.warning("[ATOX] Failed to build command for sanction: " + sanction.action + " on " + sanction.player);
+            return;
+        }
+        logger.info("[ATOX] Executing: " + cmd);
+        plugin.audit(AuditLog.Level.WARN, "sanction", sanction.player, cmd);
+        long begin = System.nanoTime();
+        try {
+            boolean success = Bukkit.dispatchCommand(Bukkit.getConsoleSender(), cmd);
+            if (success) {
+                logger.info("[ATOX] Command executed successfully: " + sanction.action + " on " + sanction.player);
+            } else {
+                logger.warning("[ATOX] Command execution failed: " + cmd);
+            }
+        } catch (Exception e) {
+            logger.severe("[ATOX] Error executing command '" + cmd + "': " + e.getMessage());
+            e.printStackTrace();
+        }
+        long end = System.nanoTime();
+        long micros = (end - begin) / 1000;
+        long waitMillis = (begin - pending.queuedAt) / 1_000_000L;
+        if (micros > budgetNanos / 1000) {
+            logger.warning("[ATOX] " + sanction.action + " command alone took " + (micros / 1000)
+                    + "ms, over the tick budget");
+        }
+        int a = pending.severity - 1;
+        if (a < 0) return;
+        synchronized (this) {
+            Latency l = latency[a];
+            l.count++;
+            l.totalMicros += micros;
+            l.maxMicros = Math.max(l.maxMicros, micros);
+            l.maxWaitMillis = Math.max(l.maxWaitMillis, waitMillis);
+        }
+    }
+
+    public synchronized int pending() {
+        return queue.size();
+    }
+
+    /** One line per action that has run: count, average and max execution time, longest queue wait. */
+    public synchronized List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        for (int i = ACTIONS.length - 1; i >= 0; i--) {
+            Latency l = latency[i];
+            if (l.count == 0) continue;
+            lines.add(ACTIONS[i] + ": " + l.count + " run, avg " + String.format("%.1f", l.totalMicros / 1000.0 / l.count)
+                    + "ms, max " + String.format("%.1f", l.maxMicros / 1000.0) + "ms, waited up to " + l.maxWaitMillis + "ms");
+        }
+        return lines;
+    }
+
+    /** Runs everything still queued right away, ignoring the budget. Main thread, on disable. */
+    public void shutdown() {
+        List<Pending> remaining = new ArrayList<>();
+        synchronized (this) {
+            if (drainTask != null) drainTask.cancel();
+            drainTask = null;
+            Pending p;
+            while ((p = queue.poll()) != null) remaining.add(p);
+        }
+        if (!remaining.isEmpty()) {
+            logger.info("[ATOX] Running " + remaining.size() + " queued sanction(s) before shutdown");
+        }
+        for (Pending p : remaining) execute(p);
+    }
+
+    static int severityOf(String action) {
+        switch (action) {
+            case "IPBAN": return 5;
+            case "BAN":   return 4;
+            case "KICK":  return 3;
+            case "MUTE":  return 2;
+            case "WARN":  return 1;
+            default:      return 0;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package com.antitoxicity;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Durable sanction history. Every sanction is appended as a CRC-framed record
+ * to the current segment file by a background thread, which writes whatever
+ * has queued since its last pass and then fsyncs once (group commit), so
+ * callers never wait on the disk. Once enough segments are closed they are
+ * folded into a snapshot holding the running totals plus the records still
+ * needed for escalation and the 24h stats; loading is the snapshot followed by
+ * a sequential read of the remaining segments.
+ */
+public class SanctionStore {
+
+    private static final int SNAPSHOT_MAGIC = 0x41545853; // "ATXS"
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_TEXT = 2000;
+    private static final int MAX_RECORD_BYTES = 1 << 20;
+
+    /** Everything needed to rebuild the tracker: totals over all time plus the recent records. */
+    public static final class State {
+        public long total;
+        public final Map<String, Long> byAction = new TreeMap<>();
+        public final Map<String, Integer> byPlayer = new HashMap<>();
+        public final List<SanctionTracker.SanctionRecord> recent = new ArrayList<>();
+        long foldedThrough = -1;
+
+        void add(SanctionTracker.SanctionRecord r) {
+            total++;
+            byAction.merge(r.action, 1L, Long::sum);
+            byPlayer.merge(r.player, 1, Integer::sum);
+            recent.add(r);
+        }
+
+        /** Keeps records newer than {@code cutoff}, and at least the last {@code minRecords}. */
+        void trim(long cutoff, int minRecords) {
+            int keepFrom = Math.max(0, recent.size() - minRecords);
+            int i = 0;
+            while (i < keepFrom && recent.get(i).timestamp < cutoff) i++;
+            if (i > 0) recent.subList(0, i).clear();
+        }
+    }
+
+    private final File directory;
+    private final File snapshotFile;
+    private final Logger logger;
+    private final long retainMillis;
+    private final int retainRecords;
+    private final long segmentBytes;
+    private final int compactAfterSegments;
+    private final long groupCommitMillis;
+
+    private final Deque<SanctionTracker.SanctionRecord> queue = new ArrayDeque<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+    private FileChannel segment;
+    private long segmentNumber;
+    private long segmentSize;
+
+    /**
+     * @param retainMillis how far back the snapshot keeps individual records (the escalation window)
+     * @param retainRecords minimum number of most recent records the snapshot keeps
+     */
+    public SanctionStore(File dataFolder, Logger logger, long retainMillis, int retainRecords,
+                         long segmentBytes, int compactAfterSegments, long groupCommitMillis) {
+        this.directory = new File(dataFolder, "sanctions");
+        this.snapshotFile = new File(directory, "snapshot.dat");
+        this.logger = logger;
+        this.retainMillis = Math.max(24L * 3600L * 1000L, retainMillis);
+        this.retainRecords = Math.max(0, retainRecords);
+        this.segmentBytes = Math.max(64 * 1024, segmentBytes);
+        this.compactAfterSegments = Math.max(1, compactAfterSegments);
+        this.groupCommitMillis = Math.max(0, groupCommitMillis);
+
+        directory.mkdirs();
+        long[] existing = segmentNumbers();
+        // Always start a fresh segment: a tail torn by a crash is never appended to
+        long last = existing.length == 0 ? -1 : existing[existing.length - 1];
+        this.segmentNumber = Math.max(last, readSnapshot().foldedThrough) + 1;
+
+        this.writer = new Thread(this::runLoop, "ATOX-SanctionStore");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /** Reads the snapshot and every segment. Call once, before the first append. */
+    public State load() {
+        long start = System.currentTimeMillis();
+        State state = readSnapshot();
+        int replayed = 0;
+        for (long n : segmentNumbers()) {
+            if (n <= state.foldedThrough) continue;
+            replayed += readSegment(segmentFile(n), state);
+        }
+        state.trim(System.currentTimeMillis() - retainMillis, retainRecords);
+        logger.info("[ATOX] Loaded sanction history: " + state.total + " total, " + state.recent.size()
+                + " recent (" + replayed + " replayed from log) in " + (System.currentTimeMillis() - start) + "ms");
+        return state;
+    }
+
+    /** Queues a record for the writer thread. Never touches the disk. */
+    public void append(SanctionTracker.SanctionRecord record) {
+        synchronized (queue) {
+            queue.addLast(record);
+            queue.notifyAll();
+        }
+    }
+
+    private void runLoop() {
+        List<SanctionTracker.SanctionRecord> batch = new ArrayList<>();
+        while (true) {
+            synchronized (queue) {
+                while (queue.isEmpty() && running) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+                if (queue.isEmpty()) break;
+            }
+            // Let a burst (one analysis cycle) gather so it shares a single fsync
+            if (groupCommitMillis > 0 && running) {
+                try {
+                    Thread.sleep(groupCommitMillis);
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+            }
+            synchronized (queue) {
+                batch.addAll(queue);
+                queue.clear();
+            }
+            try {
+                writeBatch(batch);
+                batch.clear();
+            } catch (IOException e) {
+                logger.severe("[ATOX] Failed to write sanction log, will retry: " + e.getMessage());
+                closeSegment();
+                // The failed write may have left a partial record; retry in a fresh segment
+                segmentNumber++;
+                synchronized (queue) {
+                    for (int i = batch.size() - 1; i >= 0; i--) queue.addFirst(batch.get(i));
+                }
+                batch.clear();
+                if (!running) break;
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+        closeSegment();
+    }
+
+    private void writeBatch(List<SanctionTracker.SanctionRecord> batch) throws IOException {
+        if (segment == null) {
+            segment = FileChannel.open(segmentFile(segmentNumber).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            segmentSize = segment.size();
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 * batch.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+        DataOutputStream body = new DataOutputStream(payload);
+        CRC32 crc = new CRC32();
+        for (SanctionTracker.SanctionRecord r : batch) {
+            payload.reset();
+            writeRecord(body, r);
+            crc.reset();
+            crc.update(payload.toByteArray());
+            out.writeInt(payload.size());
+            out.writeInt((int) crc.getValue());
+            payload.writeTo(out);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) segment.write(buffer);
+        segment.force(false);
+        segmentSize += bytes.size();
+
+        if (segmentSize >= segmentBytes) {
+            closeSegment();
+            segmentNumber++;
+            if (segmentNumbers().length > compactAfterSegments) {
+                compact();
+            }
+        }
+    }
+
+    /** Folds the snapshot and every closed segment into a new snapshot, then deletes those segments. */
+    private void compact() {
+        State state = readSnapshot();
+        List<Long> folded = new ArrayList<>();
+        for (long n : segmentNumbers()) {
+            if (n >= segmentNumber) break;
+            if (n > state.foldedThrough) readSegment(segmentFile(n), state);
+            folded.add(n);
+        }
+        if (folded.isEmpty()) return;
+        state.foldedThrough = folded.get(folded.size() - 1);
+        state.trim(System.currentTimeMillis() - retainMillis, retainRecords);
+
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(state.foldedThrough);
+            out.writeLong(state.total);
+            out.writeInt(state.byAction.size());
+            for (Map.Entry<String, Long> e : state.byAction.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue());
+            }
+            out.writeInt(state.byPlayer.size());
+            for (Map.Entry<String, Integer> e : state.byPlayer.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue());
+            }
+            out.writeInt(state.recent.size());
+            for (SanctionTracker.SanctionRecord r : state.recent) {
+                writeRecord(out, r);
+            }
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            logger.severe("[ATOX] Failed to compact sanction log: " + e.getMessage());
+            return;
+        }
+        if (!tmp.renameTo(snapshotFile)) {
+            snapshotFile.delete();
+            if (!tmp.renameTo(snapshotFile)) {
+                logger.severe("[ATOX] Failed to replace sanction snapshot");
+                return;
+            }
+        }
+        // The snapshot names the last segment it contains, so a crash before these deletes is harmless
+        for (long n : folded) {
+            segmentFile(n).delete();
+        }
+        logger.info("[ATOX] Compacted " + folded.size() + " sanction log segment(s) into the snapshot");
+    }
+
+    private State readSnapshot() {
+        State state = new State();
+        if (!snapshotFile.exists()) return state;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("unrecognized snapshot format");
+            }
+            state.foldedThrough = in.readLong();
+            state.total = in.readLong();
+            int actions = in.readInt();
+            for (int i = 0; i < actions; i++) state.byAction.put(in.readUTF(), in.readLong());
+            int players = in.readInt();
+            for (int i = 0; i < players; i++) state.byPlayer.put(in.readUTF(), in.readInt());
+            int records = in.readInt();
+            for (int i = 0; i < records; i++) state.recent.add(readRecord(in));
+        } catch (IOException e) {
+            logger.warning("[ATOX] Failed to read sanction snapshot: " + e.getMessage());
+            return new State();
+        }
+        return state;
+    }
+
+    /** Adds every intact record of a segment to the state; stops at the first torn or corrupt one. */
+    private int readSegment(File file, State state) {
+        int count = 0;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int checksum = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_BYTES) throw new IOException("bad record length " + length);
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) throw new IOException("checksum mismatch");
+                state.add(readRecord(new DataInputStream(new ByteArrayInputStream(payload))));
+                count++;
+            }
+        } catch (EOFException e) {
+            logger.warning("[ATOX] Sanction log " + file.getName() + " ends in a torn record, ignoring it");
+        } catch (IOException e) {
+            logger.warning("[ATOX] Sanction log " + file.getName() + " is damaged after " + count
+                    + " record(s): " + e.getMessage());
+        }
+        return count;
+    }
+
+    private static void writeRecord(DataOutputStream out, SanctionTracker.SanctionRecord r) throws IOException {
+        out.writeLong(r.timestamp);
+        out.writeUTF(r.player);
+        out.writeUTF(r.action);
+        out.writeUTF(clip(r.reason));
+        out.writeUTF(clip(r.triggerMessage));
+    }
+
+    private static SanctionTracker.SanctionRecord readRecord(DataInputStream in) throws IOException {
+        long timestamp = in.readLong();
+        return new SanctionTracker.SanctionRecord(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), timestamp);
+    }
+
+    private static String clip(String s) {
+        if (s == null) return "";
+        return s.length() > MAX_TEXT ? s.substring(0, MAX_TEXT) : s;
+    }
+
+    private File segmentFile(long n) {
+        return new File(directory, String.format("segment-%08d.log", n));
+    }
+
+    private long[] segmentNumbers() {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(".log"));
+        if (files == null) return new long[0];
+        long[] numbers = new long[files.length];
+        int count = 0;
+        for (File f : files) {
+            try {
+                numbers[count++] = Long.parseLong(f.getName().substring(8, f.getName().length() - 4));
+            } catch (NumberFormatException e) {
+                count--;
+            }
+        }
+        long[] result = java.util.Arrays.copyOf(numbers, count);
+        java.util.Arrays.sort(result);
+        return result;
+    }
+
+    private void closeSegment() {
+        if (segment == null) return;
+        try {
+            segment.close();
+        } catch (IOException ignored) {
+        }
+        segment = null;
+    }
+
+    /** Writes and syncs everything still queued, then stops the writer. */
+    public void shutdown() {
+        synchronized (queue) {
+            running = false;
+            queue.notifyAll();
+        }
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int lost;
+        synchronized (queue) {
+            lost = queue.size();
+        }
+        if (lost > 0) {
+            logger.warning("[ATOX] " + lost + " sanction(s) could not be written to the sanction log");
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.antitoxicity;
+
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Incremental reader for the sanction array Gemini writes. Text can be fed in
+ * arbitrary fragments (as it arrives from a stream); each sanction is emitted
+ * as soon as its object closes, so a truncated answer still yields every
+ * sanction that was complete. Anything before the opening bracket, such as a
+ * markdown fence, is ignored.
+ */
+final class SanctionStreamParser {
+
+    private enum State { BEFORE_ARRAY, IN_ARRAY, DONE }
+
+    private final Consumer<GeminiAnalyzer.Sanction> listener;
+    private final Logger logger;
+    private final StringBuilder object = new StringBuilder();
+
+    private State state = State.BEFORE_ARRAY;
+    private int depth;
+    private boolean inString;
+    private boolean escaped;
+    private int emitted;
+    private int malformed;
+
+    SanctionStreamParser(Consumer<GeminiAnalyzer.Sanction> listener, Logger logger) {
+        this.listener = listener;
+        this.logger = logger;
+    }
+
+    void feed(CharSequence text) {
+        for (int i = 0; i < text.length() && state != State.DONE; i++) {
+            char c = text.charAt(i);
+            if (state == State.BEFORE_ARRAY) {
+                if (c == '[') state = State.IN_ARRAY;
+                continue;
+            }
+
+            if (depth == 0) {
+                if (c == '{') {
+                    object.setLength(0);
+                    object.append(c);
+                    depth = 1;
+                } else if (c == ']') {
+                    state = State.DONE;
+                }
+                continue;
+            }
+
+            object.append(c);
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if ((c == '}' || c == ']') && --depth == 0) {
+                emit(object.toString());
+            }
+        }
+    }
+
+    private void emit(String json) {
+        try {
+            GeminiAnalyzer.Sanction sanction = SanctionTypeAdapter.INSTANCE.fromJson(json);
+            if (isValidAction(sanction.action)) {
+                emitted++;
+                listener.accept(sanction);
+            } else {
+                malformed++;
+                logger.warning("[ATOX] Skipping sanction with unknown action: " + sanction.action);
+            }
+        } catch (Exception e) {
+            malformed++;
+            logger.warning("[ATOX] Skipping malformed sanction in Gemini response: " + e.getMessage());
+        }
+    }
+
+    static boolean isValidAction(String action) {
+        return action.equals("WARN") || action.equals("MUTE")
+                || action.equals("KICK") || action.equals("BAN") || action.equals("IPBAN");
+    }
+
+    /** True once the closing bracket of the array has been read. */
+    boolean isComplete() {
+        return state == State.DONE;
+    }
+
+    /** True if the opening bracket was never seen, i.e. the answer was not a JSON array. */
+    boolean sawNoArray() {
+        return state == State.BEFORE_ARRAY;
+    }
+
+    int emittedCount() {
+        return emitted;
+    }
+
+    int malformedCount() {
+        return malformed;
+    }
+}
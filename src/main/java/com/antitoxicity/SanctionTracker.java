@@ -1,11 +1,18 @@
 package com.antitoxicity;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Logger;
 
 /**
  * Tracks sanction history for stats, pattern escalation, and daily summaries.
+ *
+ * <p>Stats are kept as running aggregates updated on every sanction (per-action
+ * totals, per-player totals with a top-K leaderboard, and 24 hourly buckets for
+ * the last day), so queries never scan the history. The history itself is only
+ * the most recent records, for the 24h listing.
  */
 public class SanctionTracker {
 
@@ -17,33 +24,139 @@ public class SanctionTracker {
         public final long timestamp;
 
         SanctionRecord(String player, String action, String reason, String triggerMessage) {
+            this(player, action, reason, triggerMessage, System.currentTimeMillis());
+        }
+
+        SanctionRecord(String player, String action, String reason, String triggerMessage, long timestamp) {
             this.player = player;
             this.action = action;
             this.reason = reason;
             this.triggerMessage = triggerMessage;
-            this.timestamp = System.currentTimeMillis();
+            this.timestamp = timestamp;
         }
     }
 
-    private final List<SanctionRecord> history = Collections.synchronizedList(new ArrayList<>());
+    private static final String[] ACTIONS = {"WARN", "MUTE", "KICK", "BAN", "IPBAN"};
+    private static final int TOP_CAPACITY = 10;
+    private static final long HOUR_MILLIS = 3600L * 1000L;
+    private static final int HOURS = 24;
+
+    private final Deque<SanctionRecord> history = new ArrayDeque<>();
+    private final int maxHistory;
+    private final AtomicInteger totalSanctions = new AtomicInteger(0);
+    private final AtomicLongArray byAction = new AtomicLongArray(ACTIONS.length);
+    private final Map<String, AtomicInteger> byPlayer = new ConcurrentHashMap<>();
+    // Leaderboard of the TOP_CAPACITY players with the most sanctions, highest first
+    private final List<Map.Entry<String, Integer>> top = new ArrayList<>(TOP_CAPACITY + 1);
+    // Each cell packs an hour number (upper 32 bits) and that hour's count (lower 32 bits)
+    private final AtomicLongArray hourly = new AtomicLongArray(HOURS);
     private final AtomicInteger totalMessagesAnalyzed = new AtomicInteger(0);
     private final AtomicInteger totalCycles = new AtomicInteger(0);
     private final AtomicInteger falsePositivesReported = new AtomicInteger(0);
     private final Logger logger;
 
-    private final int warnThresholdForMute;
-    private final int muteThresholdForBan;
-    private final long escalationWindowMillis;
+    private final EscalationEngine escalation;
+    private volatile SanctionStore store;
 
-    public SanctionTracker(Logger logger, int warnThresholdForMute, int muteThresholdForBan, int escalationWindowDays) {
+    public SanctionTracker(Logger logger, int warnThresholdForMute, int muteThresholdForBan, int escalationWindowDays,
+                           int maxHistory) {
         this.logger = logger;
-        this.warnThresholdForMute = warnThresholdForMute;
-        this.muteThresholdForBan = muteThresholdForBan;
-        this.escalationWindowMillis = escalationWindowDays * 24L * 3600L * 1000L;
+        this.escalation = new EscalationEngine(logger, warnThresholdForMute, muteThresholdForBan, escalationWindowDays);
+        this.maxHistory = Math.max(1, maxHistory);
     }
 
     public void recordSanction(GeminiAnalyzer.Sanction s) {
-        history.add(new SanctionRecord(s.player, s.action, s.reason, s.triggerMessage));
+        SanctionRecord record = new SanctionRecord(s.player, s.action, s.reason, s.triggerMessage);
+        synchronized (history) {
+            if (history.size() >= maxHistory) history.pollFirst();
+            history.addLast(record);
+        }
+        totalSanctions.incrementAndGet();
+        int action = actionIndex(record.action);
+        if (action >= 0) byAction.incrementAndGet(action);
+        AtomicInteger playerCount = byPlayer.computeIfAbsent(record.player, k -> new AtomicInteger());
+        playerCount.incrementAndGet();
+        updateTop(record.player, playerCount);
+        countHour(record.timestamp);
+        escalation.record(record.player, record.action, record.timestamp);
+        SanctionStore persist = store;
+        if (persist != null) persist.append(record);
+    }
+
+    /** Persists every sanction recorded from now on. */
+    public void setStore(SanctionStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Rebuilds the aggregates, leaderboard, 24h buckets, recent history and
+     * escalation counters from a loaded store. Call on an empty tracker.
+     */
+    public void restore(SanctionStore.State state) {
+        totalSanctions.addAndGet((int) state.total);
+        for (Map.Entry<String, Long> e : state.byAction.entrySet()) {
+            int action = actionIndex(e.getKey());
+            if (action >= 0) byAction.addAndGet(action, e.getValue());
+        }
+        for (Map.Entry<String, Integer> e : state.byPlayer.entrySet()) {
+            byPlayer.computeIfAbsent(e.getKey(), k -> new AtomicInteger()).addAndGet(e.getValue());
+        }
+        synchronized (top) {
+            top.clear();
+            byPlayer.entrySet().stream()
+                    .sorted((a, b) -> b.getValue().get() - a.getValue().get())
+                    .limit(TOP_CAPACITY)
+                    .forEach(e -> top.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue().get())));
+        }
+        for (SanctionRecord r : state.recent) {
+            synchronized (history) {
+                if (history.size() >= maxHistory) history.pollFirst();
+                history.addLast(r);
+            }
+            countHour(r.timestamp);
+            escalation.record(r.player, r.action, r.timestamp);
+        }
+    }
+
+    /**
+     * Per-player counts only grow, so a player can only enter the leaderboard
+     * on one of their own increments; checking it there keeps the top-K exact.
+     */
+    private void updateTop(String player, AtomicInteger playerCount) {
+        synchronized (top) {
+            // Read under the lock so racing increments of one player never publish a stale count
+            int count = playerCount.get();
+            int size = top.size();
+            if (size == TOP_CAPACITY && count <= top.get(size - 1).getValue()) {
+                boolean listed = false;
+                for (Map.Entry<String, Integer> e : top) {
+                    if (e.getKey().equals(player)) { listed = true; break; }
+                }
+                if (!listed) return;
+            }
+            top.removeIf(e -> e.getKey().equals(player));
+            int at = 0;
+            while (at < top.size() && top.get(at).getValue() >= count) at++;
+            top.add(at, new AbstractMap.SimpleImmutableEntry<>(player, count));
+            if (top.size() > TOP_CAPACITY) top.remove(TOP_CAPACITY);
+        }
+    }
+
+    private void countHour(long timestamp) {
+        long hour = timestamp / HOUR_MILLIS;
+        int slot = (int) (hour % HOURS);
+        while (true) {
+            long current = hourly.get(slot);
+            long next = (current >>> 32) == hour ? current + 1 : (hour << 32) | 1;
+            if ((current >>> 32) > hour || hourly.compareAndSet(slot, current, next)) return;
+        }
+    }
+
+    private static int actionIndex(String action) {
+        for (int i = 0; i < ACTIONS.length; i++) {
+            if (ACTIONS[i].equals(action)) return i;
+        }
+        return -1;
     }
 
     public void recordCycle(int messagesAnalyzed) {
@@ -55,57 +168,56 @@ public class SanctionTracker {
         falsePositivesReported.incrementAndGet();
     }
 
-    public String checkEscalation(String playerName) {
-        long cutoff = System.currentTimeMillis() - escalationWindowMillis;
-
-        int warns = 0;
-        int mutes = 0;
-
-        synchronized (history) {
-            for (SanctionRecord r : history) {
-                if (!r.player.equalsIgnoreCase(playerName)) continue;
-                if (r.timestamp < cutoff) continue;
-                if ("WARN".equals(r.action)) warns++;
-                else if ("MUTE".equals(r.action)) mutes++;
-            }
-        }
+    /**
+     * Returns the sanction upgraded per the escalation thresholds (repeated
+     * WARNs become a MUTE, repeated MUTEs a BAN), or the same sanction when
+     * the player has not reached them. Call before recording it.
+     */
+    public GeminiAnalyzer.Sanction escalate(GeminiAnalyzer.Sanction s) {
+        String upgraded = escalation.escalationFor(s.player, s.action, System.currentTimeMillis());
+        if (upgraded == null) return s;
+        String reason = s.reason + " (escalated from " + s.action + ": repeat offences in "
+                + escalation.windowDays() + " days)";
+        // The model's duration was chosen for the original action; use the default for the new one
+        return new GeminiAnalyzer.Sanction(s.player, upgraded, reason, s.triggerMessage, "");
+    }
 
-        if (mutes >= muteThresholdForBan) {
-            logger.warning("[ATOX] Escalation: " + playerName
-                    + " has " + mutes + " mutes in window -> BAN");
-            return "BAN";
-        }
-        if (warns >= warnThresholdForMute) {
-            logger.warning("[ATOX] Escalation: " + playerName
-                    + " has " + warns + " warns in window -> MUTE");
-            return "MUTE";
-        }
-        return null;
+    public int pruneEscalation() {
+        return escalation.prune(System.currentTimeMillis());
     }
 
-    public int getTotalSanctions() { return history.size(); }
+    public int getTotalSanctions() { return totalSanctions.get(); }
     public int getTotalMessagesAnalyzed() { return totalMessagesAnalyzed.get(); }
     public int getTotalCycles() { return totalCycles.get(); }
     public int getFalsePositivesReported() { return falsePositivesReported.get(); }
 
     public List<Map.Entry<String, Integer>> getTopSanctionedPlayers(int topN) {
-        Map<String, Integer> counts = new LinkedHashMap<>();
-        synchronized (history) {
-            for (SanctionRecord r : history) counts.merge(r.player, 1, Integer::sum);
+        synchronized (top) {
+            return new ArrayList<>(top.subList(0, Math.min(topN, top.size())));
         }
-        List<Map.Entry<String, Integer>> sorted = new ArrayList<>(counts.entrySet());
-        sorted.sort((a, b) -> b.getValue() - a.getValue());
-        return sorted.subList(0, Math.min(topN, sorted.size()));
     }
 
     public Map<String, Integer> getSanctionsByType() {
         Map<String, Integer> counts = new LinkedHashMap<>();
-        synchronized (history) {
-            for (SanctionRecord r : history) counts.merge(r.action, 1, Integer::sum);
+        for (int i = 0; i < ACTIONS.length; i++) {
+            long n = byAction.get(i);
+            if (n > 0) counts.put(ACTIONS[i], (int) n);
         }
         return counts;
     }
 
+    /** Sanctions in the last 24 hours, counted per hour (the oldest hour may be partial). */
+    public int getLast24hCount() {
+        long nowHour = System.currentTimeMillis() / HOUR_MILLIS;
+        int total = 0;
+        for (int i = 0; i < HOURS; i++) {
+            long cell = hourly.get(i);
+            if (nowHour - (cell >>> 32) < HOURS) total += (int) (cell & 0xFFFFFFFFL);
+        }
+        return total;
+    }
+
+    /** The retained records of the last 24 hours, at most {@code stats.history-size} of them. */
     public List<SanctionRecord> getLast24hSanctions() {
         long cutoff = System.currentTimeMillis() - 24L * 3600L * 1000L;
         List<SanctionRecord> recent = new ArrayList<>();
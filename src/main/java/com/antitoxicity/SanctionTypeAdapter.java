@@ -0,0 +1,66 @@
+package com.antitoxicity;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Reads a sanction object straight into a {@link GeminiAnalyzer.Sanction}
+ * without building a JSON tree. Field names match the prompt and the response
+ * schema; {@code player}, {@code action} and {@code reason} are required.
+ */
+final class SanctionTypeAdapter extends TypeAdapter<GeminiAnalyzer.Sanction> {
+
+    static final SanctionTypeAdapter INSTANCE = new SanctionTypeAdapter();
+
+    private SanctionTypeAdapter() {
+    }
+
+    @Override
+    public GeminiAnalyzer.Sanction read(JsonReader in) throws IOException {
+        String player = null;
+        String action = null;
+        String reason = null;
+        String triggerMessage = "N/A";
+        String duration = "";
+
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "player":          player = in.nextString(); break;
+                case "action":          action = in.nextString().toUpperCase(Locale.ROOT); break;
+                case "reason":          reason = in.nextString(); break;
+                case "trigger_message": triggerMessage = in.nextString(); break;
+                case "duration":        duration = in.nextString(); break;
+                default:                in.skipValue();
+            }
+        }
+        in.endObject();
+
+        if (player == null || action == null || reason == null) {
+            throw new JsonParseException("sanction without player, action or reason");
+        }
+        return new GeminiAnalyzer.Sanction(player, action, reason, triggerMessage, duration);
+    }
+
+    @Override
+    public void write(JsonWriter out, GeminiAnalyzer.Sanction sanction) throws IOException {
+        out.beginObject();
+        out.name("player").value(sanction.player);
+        out.name("action").value(sanction.action);
+        out.name("duration").value(sanction.duration);
+        out.name("reason").value(sanction.reason);
+        out.name("trigger_message").value(sanction.triggerMessage);
+        out.endObject();
+    }
+}
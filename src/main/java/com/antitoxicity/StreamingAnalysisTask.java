@@ -0,0 +1,79 @@
+package com.antitoxicity;
+
+import org.bukkit.scheduler.BukkitRunnable;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Near-real-time analysis. Polls the journal and flushes a micro-batch as soon
+ * as it reaches a message count, a size in characters, or a maximum latency,
+ * whichever comes first. A flush waits while the shared Gemini request limit
+ * has no permit left, so a due batch keeps growing instead of queueing behind it.
+ */
+public class StreamingAnalysisTask extends BukkitRunnable {
+
+    private final AntiToxicity plugin;
+    private final AnalysisTask analysis;
+    private final Logger logger;
+    private final int maxMessages;
+    private final long maxChars;
+    private final long maxLatencyMillis;
+    private final RateLimiter rateLimiter;
+
+    private final AtomicBoolean flushing = new AtomicBoolean(false);
+    private long pendingSince = 0;
+
+    public StreamingAnalysisTask(AntiToxicity plugin, AnalysisTask analysis, int maxMessages,
+                                 long maxChars, long maxLatencyMillis, RateLimiter requestLimiter) {
+        this.plugin = plugin;
+        this.analysis = analysis;
+        this.logger = plugin.getLogger();
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxChars = Math.max(1, maxChars);
+        this.maxLatencyMillis = Math.max(0, maxLatencyMillis);
+        this.rateLimiter = requestLimiter;
+    }
+
+    @Override
+    public void run() {
+        // Never overlap flushes: the next poll picks up whatever arrived meanwhile
+        if (!flushing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // Live pending messages: shed ones never trigger a flush, retained players always do
+            long pending = plugin.pendingMessageCount();
+            if (pending == 0) {
+                pendingSince = 0;
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            if (pendingSince == 0) {
+                pendingSince = now;
+            }
+
+            boolean due = pending >= maxMessages
+                    || plugin.pendingChars() >= maxChars
+                    || now - pendingSince >= maxLatencyMillis;
+            if (!due) {
+                return;
+            }
+
+            // The permits themselves are taken per request by the analyzer
+            long wait = rateLimiter.millisUntilNextPermit();
+            if (wait > 0) {
+                logger.fine("[ATOX] Streaming flush deferred by rate limit (" + wait + "ms).");
+                return;
+            }
+
+            pendingSince = 0;
+            analysis.analyze(plugin.getMessagesForAnalysis());
+        } catch (Exception e) {
+            logger.severe("[ATOX] Streaming analysis error: " + e.getMessage());
+        } finally {
+            flushing.set(false);
+        }
+    }
+}
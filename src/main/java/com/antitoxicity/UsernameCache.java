@@ -1,54 +1,312 @@
 package com.antitoxicity;
 
 import java.io.*;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
+/**
+ * Concurrent username verdict cache with size and TTL eviction. Offensive and
+ * safe verdicts have separate TTLs. Changes are written behind to a compact
+ * append-only log that is periodically folded into a snapshot, so a crash
+ * loses at most one flush interval and startup is a sequential read.
+ *
+ * Log records are framed as {@code [length][crc32][payload]}. Loading stops at
+ * the first torn or damaged frame, and a damaged log is folded into a fresh
+ * snapshot right away, so nothing is ever appended after bad bytes.
+ */
 public class UsernameCache {
-    private final File cacheFile;
-    private final Map<String, String> cache; // username -> reason (empty string = safe)
+
+    private static final int SNAPSHOT_MAGIC = 0x41545843; // "ATXC"
+    private static final int FORMAT_VERSION = 1;
+    private static final int LOG_MAGIC = 0x4154584C; // "ATXL"; logs without it predate framing
+    private static final int MAX_RECORD_BYTES = 1 << 16;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private final File snapshotFile;
+    private final File logFile;
     private final Logger logger;
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>(); // username -> verdict
+    private final Queue<String> dirty = new ConcurrentLinkedQueue<>();
+
+    private volatile int maxEntries;
+    private volatile long offensiveTtlMillis;
+    private volatile long safeTtlMillis;
+    private int logRecords;
+    // Set when the log on disk may end in a torn record; the next flush starts a fresh one
+    private boolean logDamaged;
+
+    private static final class Entry {
+        final String reason; // empty string = safe
+        final long expiresAt;
+        volatile long lastAccess;
+
+        Entry(String reason, long expiresAt) {
+            this.reason = reason;
+            this.expiresAt = expiresAt;
+            this.lastAccess = System.currentTimeMillis();
+        }
+    }
 
-    public UsernameCache(File dataFolder, Logger logger) {
-        this.cacheFile = new File(dataFolder, "username_cache.dat");
+    public UsernameCache(File dataFolder, Logger logger, int maxEntries, int offensiveTtlDays, int safeTtlDays) {
+        this.snapshotFile = new File(dataFolder, "username_cache.snapshot");
+        this.logFile = new File(dataFolder, "username_cache.log");
         this.logger = logger;
-        this.cache = new HashMap<>();
+        configure(maxEntries, offensiveTtlDays, safeTtlDays);
         loadCache();
     }
 
+    /** Applies new limits; existing entries keep the expiry they were written with. */
+    public void configure(int maxEntries, int offensiveTtlDays, int safeTtlDays) {
+        this.maxEntries = Math.max(100, maxEntries);
+        this.offensiveTtlMillis = offensiveTtlDays * 24L * 3600L * 1000L;
+        this.safeTtlMillis = safeTtlDays * 24L * 3600L * 1000L;
+    }
+
     private void loadCache() {
-        if (!cacheFile.exists()) {
+        if (new File(snapshotFile.getParentFile(), "username_cache.dat").exists()) {
+            logger.info("[ATOX] Legacy username_cache.dat is no longer read and can be deleted");
+        }
+        if (!snapshotFile.exists() && !logFile.exists()) {
             logger.info("[ATOX] Username cache file not found, creating new one");
             return;
         }
 
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(cacheFile))) {
-            @SuppressWarnings("unchecked")
-            Map<String, String> loaded = (Map<String, String>) ois.readObject();
-            cache.putAll(loaded);
+        long now = System.currentTimeMillis();
+        try {
+            if (snapshotFile.exists()) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+                    if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != FORMAT_VERSION) {
+                        throw new IOException("unrecognized snapshot format");
+                    }
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        applyRecord(in, now);
+                    }
+                }
+            }
             logger.info("[ATOX] Loaded " + cache.size() + " entries from username cache");
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             logger.warning("[ATOX] Failed to load username cache: " + e.getMessage());
         }
+        if (logFile.exists()) {
+            readLog(now);
+        }
+        if (logDamaged && compact()) {
+            logDamaged = false;
+        }
+    }
+
+    /** Replays the log up to its first bad frame. Marks it damaged if anything was left unread. */
+    private void readLog(long now) {
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+            in.mark(4);
+            if (in.readInt() != LOG_MAGIC) {
+                in.reset();
+                readLegacyLog(in, now);
+                return;
+            }
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return; // clean end
+                }
+                int checksum = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_BYTES) throw new IOException("bad record length " + length);
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) throw new IOException("checksum mismatch");
+                applyRecord(new DataInputStream(new ByteArrayInputStream(payload)), now);
+                logRecords++;
+            }
+        } catch (EOFException e) {
+            logger.warning("[ATOX] Username cache log ends in a torn record after " + logRecords
+                    + " record(s), starting a fresh one");
+            logDamaged = true;
+        } catch (IOException e) {
+            logger.warning("[ATOX] Username cache log is damaged after " + logRecords
+                    + " record(s), starting a fresh one: " + e.getMessage());
+            logDamaged = true;
+        }
+    }
+
+    /** Unframed log written before records had a length and checksum; read once, then compacted. */
+    private void readLegacyLog(DataInputStream in, long now) {
+        try {
+            while (true) {
+                applyRecord(in, now);
+                logRecords++;
+            }
+        } catch (EOFException e) {
+            // End of log, or a record torn by a crash
+        } catch (IOException e) {
+            logger.warning("[ATOX] Old username cache log is damaged after " + logRecords + " record(s): " + e.getMessage());
+        }
+        logDamaged = true;
+    }
+
+    private void applyRecord(DataInputStream in, long now) throws IOException {
+        byte op = in.readByte();
+        String name = in.readUTF();
+        if (op == OP_REMOVE) {
+            cache.remove(name);
+            return;
+        }
+        String reason = in.readUTF();
+        long expiresAt = in.readLong();
+        if (expiresAt > now) {
+            cache.put(name, new Entry(reason, expiresAt));
+        } else {
+            cache.remove(name);
+        }
     }
 
-    public void saveCache() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(cacheFile))) {
-            oos.writeObject(cache);
-            logger.info("[ATOX] Saved " + cache.size() + " entries to username cache");
+    private static void writeRecord(DataOutputStream out, String name, Entry entry) throws IOException {
+        if (entry == null) {
+            out.writeByte(OP_REMOVE);
+            out.writeUTF(name);
+            return;
+        }
+        out.writeByte(OP_PUT);
+        out.writeUTF(name);
+        out.writeUTF(entry.reason);
+        out.writeLong(entry.expiresAt);
+    }
+
+    /**
+     * Writes every change since the last flush to the log, evicts over-limit
+     * entries, and compacts the log into a new snapshot once it outgrows the
+     * cache. Runs on a background thread.
+     */
+    public synchronized void flush() {
+        evict();
+        if (dirty.isEmpty()) return;
+        if (logDamaged) {
+            // Never append after a torn tail: fold everything into the snapshot first
+            if (!compact()) return;
+            logDamaged = false;
+        }
+
+        List<String> names = new ArrayList<>();
+        String name;
+        while ((name = dirty.poll()) != null) names.add(name);
+
+        boolean fresh = !logFile.exists() || logFile.length() == 0;
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+        DataOutputStream body = new DataOutputStream(payload);
+        CRC32 crc = new CRC32();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)))) {
+            if (fresh) out.writeInt(LOG_MAGIC);
+            for (String n : names) {
+                payload.reset();
+                writeRecord(body, n, cache.get(n));
+                byte[] bytes = payload.toByteArray();
+                crc.reset();
+                crc.update(bytes);
+                out.writeInt(bytes.length);
+                out.writeInt((int) crc.getValue());
+                out.write(bytes);
+            }
+        } catch (IOException e) {
+            logger.severe("[ATOX] Failed to write username cache log, will retry: " + e.getMessage());
+            // Part of the batch may be on disk, torn: retry everything after a compaction
+            logDamaged = true;
+            dirty.addAll(names);
+            return;
+        }
+        logRecords += names.size();
+
+        if (logRecords > Math.max(1000, cache.size())) {
+            compact();
+        }
+    }
+
+    /** Rewrites the snapshot from memory and truncates the log. */
+    public synchronized void saveCache() {
+        flush();
+        if (compact()) logDamaged = false;
+    }
+
+    /** Returns false if the snapshot could not be written; the log is then left alone. */
+    private boolean compact() {
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        List<Map.Entry<String, Entry>> entries = new ArrayList<>(cache.entrySet());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries) {
+                writeRecord(out, e.getKey(), e.getValue());
+            }
         } catch (IOException e) {
             logger.severe("[ATOX] Failed to save username cache: " + e.getMessage());
+            return false;
+        }
+        if (!tmp.renameTo(snapshotFile)) {
+            snapshotFile.delete();
+            if (!tmp.renameTo(snapshotFile)) {
+                logger.severe("[ATOX] Failed to replace username cache snapshot");
+                return false;
+            }
+        }
+        // Anything written to the log is now in the snapshot
+        if (logFile.exists() && !logFile.delete()) {
+            logger.warning("[ATOX] Could not truncate username cache log");
+        }
+        logRecords = 0;
+        logger.info("[ATOX] Saved " + entries.size() + " entries to username cache");
+        return true;
+    }
+
+    /** Drops expired entries, then the least recently used ones above the size limit. */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Entry> e : cache.entrySet()) {
+            if (e.getValue().expiresAt <= now && cache.remove(e.getKey(), e.getValue())) {
+                dirty.add(e.getKey());
+            }
+        }
+
+        int excess = cache.size() - maxEntries;
+        if (excess <= 0) return;
+        List<Map.Entry<String, Entry>> byAge = new ArrayList<>(cache.entrySet());
+        byAge.sort((a, b) -> Long.compare(a.getValue().lastAccess, b.getValue().lastAccess));
+        for (int i = 0; i < excess && i < byAge.size(); i++) {
+            Map.Entry<String, Entry> e = byAge.get(i);
+            if (cache.remove(e.getKey(), e.getValue())) {
+                dirty.add(e.getKey());
+            }
         }
     }
 
     /**
      * Returns cached reason if username was analyzed before.
      * @param username the player name
-     * @return reason if offensive, empty string if safe, null if not cached
+     * @return reason if offensive, empty string if safe, null if not cached or expired
      */
     public String getCachedResult(String username) {
-        return cache.get(username.toLowerCase());
+        String key = username.toLowerCase(Locale.ROOT);
+        Entry entry = cache.get(key);
+        if (entry == null) return null;
+        long now = System.currentTimeMillis();
+        if (entry.expiresAt <= now) {
+            if (cache.remove(key, entry)) dirty.add(key);
+            return null;
+        }
+        entry.lastAccess = now;
+        return entry.reason;
     }
 
     /**
@@ -57,7 +315,11 @@ public class UsernameCache {
      * @param reason offensive reason, or empty string if safe
      */
     public void cacheResult(String username, String reason) {
-        cache.put(username.toLowerCase(), reason != null ? reason : "");
+        String key = username.toLowerCase(Locale.ROOT);
+        String verdict = reason != null ? reason : "";
+        long ttl = verdict.isEmpty() ? safeTtlMillis : offensiveTtlMillis;
+        cache.put(key, new Entry(verdict, System.currentTimeMillis() + ttl));
+        dirty.add(key);
     }
 
     /**
@@ -66,7 +328,7 @@ public class UsernameCache {
      * @return true if cached, false otherwise
      */
     public boolean isCached(String username) {
-        return cache.containsKey(username.toLowerCase());
+        return getCachedResult(username) != null;
     }
 
     /**
@@ -0,0 +1,152 @@
+package com.antitoxicity;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.bukkit.OfflinePlayer;
+
+import java.io.File;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Background job that screens every known player name (offline players and the
+ * server's usercache.json) in batched Gemini requests and fills the
+ * {@link UsernameCache}. Names that are already cached are skipped, so a job that
+ * was stopped or interrupted by a restart resumes where it left off. The names
+ * are gathered and filtered on the job's own thread, never on the caller's.
+ */
+public class UsernamePrewarmJob implements Runnable {
+
+    private final GeminiAnalyzer geminiAnalyzer;
+    private final UsernameCache usernameCache;
+    private final Logger logger;
+    private final Supplier<Collection<String>> candidates;
+    private volatile List<String> names = new ArrayList<>();
+    private final int batchSize;
+    private final RateLimiter rateLimiter;
+    private final Consumer<String> progress;
+
+    private final AtomicBoolean stopped = new AtomicBoolean(false);
+    private final AtomicInteger screened = new AtomicInteger();
+    private final AtomicInteger flagged = new AtomicInteger();
+    private final AtomicInteger failedBatches = new AtomicInteger();
+    private volatile boolean finished;
+
+    public UsernamePrewarmJob(GeminiAnalyzer geminiAnalyzer, UsernameCache usernameCache, Logger logger,
+                              Supplier<Collection<String>> candidates, int batchSize, int requestsPerMinute,
+                              Consumer<String> progress) {
+        this.geminiAnalyzer = geminiAnalyzer;
+        this.usernameCache = usernameCache;
+        this.logger = logger;
+        this.batchSize = Math.max(1, batchSize);
+        this.rateLimiter = new RateLimiter(requestsPerMinute);
+        this.progress = progress;
+        this.candidates = candidates;
+    }
+
+    /** Distinct candidate names that have no cached verdict yet. */
+    private List<String> uncachedNames() {
+        Map<String, String> unique = new LinkedHashMap<>();
+        for (String name : candidates.get()) {
+            if (name == null || name.isEmpty()) continue;
+            unique.putIfAbsent(name.toLowerCase(Locale.ROOT), name);
+        }
+        List<String> result = new ArrayList<>();
+        for (String name : unique.values()) {
+            if (!usernameCache.isCached(name)) result.add(name);
+        }
+        return result;
+    }
+
+    /** Known player names: every offline player plus the entries of usercache.json. */
+    public static List<String> collectKnownNames(OfflinePlayer[] offlinePlayers, File serverRoot, Logger logger) {
+        List<String> result = new ArrayList<>();
+        if (offlinePlayers != null) {
+            for (OfflinePlayer p : offlinePlayers) {
+                if (p.getName() != null) result.add(p.getName());
+            }
+        }
+
+        File userCache = new File(serverRoot, "usercache.json");
+        if (userCache.exists()) {
+            try (Reader reader = Files.newBufferedReader(userCache.toPath(), StandardCharsets.UTF_8)) {
+                for (JsonElement elem : JsonParser.parseReader(reader).getAsJsonArray()) {
+                    JsonObject obj = elem.getAsJsonObject();
+                    if (obj.has("name")) result.add(obj.get("name").getAsString());
+                }
+            } catch (Exception e) {
+                logger.warning("[ATOX] Could not read usercache.json: " + e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void run() {
+        try {
+            List<String> names = uncachedNames();
+            this.names = names;
+            progress.accept("Prewarm started: " + names.size() + " uncached name(s) in batches of " + batchSize + ".");
+            for (int from = 0; from < names.size() && !stopped.get(); from += batchSize) {
+                List<String> batch = names.subList(from, Math.min(names.size(), from + batchSize));
+                if (!awaitPermit()) break;
+
+                Map<String, String> verdicts = geminiAnalyzer.analyzeUsernames(batch);
+                if (verdicts == null) {
+                    failedBatches.incrementAndGet();
+                    logger.warning("[ATOX] Prewarm batch failed, its names will be checked at login or on the next run.");
+                    continue;
+                }
+                for (Map.Entry<String, String> v : verdicts.entrySet()) {
+                    usernameCache.cacheResult(v.getKey(), v.getValue());
+                    if (!v.getValue().isEmpty()) flagged.incrementAndGet();
+                }
+                screened.addAndGet(batch.size());
+                logger.info("[ATOX] Prewarm progress: " + status());
+            }
+            usernameCache.flush();
+            progress.accept((stopped.get() ? "Prewarm stopped: " : "Prewarm finished: ") + status());
+        } finally {
+            finished = true;
+        }
+    }
+
+    private boolean awaitPermit() {
+        while (!rateLimiter.tryAcquire()) {
+            if (stopped.get()) return false;
+            try {
+                Thread.sleep(Math.max(50, rateLimiter.millisUntilNextPermit()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !stopped.get();
+    }
+
+    public void stop() {
+        stopped.set(true);
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public String status() {
+        return screened.get() + "/" + names.size() + " screened, " + flagged.get() + " flagged, "
+                + failedBatches.get() + " failed batch(es)";
+    }
+}
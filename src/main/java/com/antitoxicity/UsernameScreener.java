@@ -0,0 +1,61 @@
+package com.antitoxicity;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Runs username checks on the async HTTP client and caches the verdicts.
+ * Concurrent pre-logins for the same name share one in-flight request.
+ */
+public class UsernameScreener {
+
+    private final GeminiAnalyzer geminiAnalyzer;
+    private final UsernameCache usernameCache;
+    private final Logger logger;
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    public UsernameScreener(GeminiAnalyzer geminiAnalyzer, UsernameCache usernameCache, Logger logger) {
+        this.geminiAnalyzer = geminiAnalyzer;
+        this.usernameCache = usernameCache;
+        this.logger = logger;
+    }
+
+    /**
+     * Returns the verdict for a name that is not cached yet: the reason if it is
+     * offensive, or an empty string if it is clean. An API failure is treated as
+     * clean but not cached, so the name is checked again on the next login.
+     */
+    public CompletableFuture<String> screen(String name) {
+        String key = name.toLowerCase(Locale.ROOT);
+        CompletableFuture<String> existing = inFlight.get(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        CompletableFuture<String> created = new CompletableFuture<>();
+        existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            return existing;
+        }
+
+        geminiAnalyzer.analyzeUsernameAsync(name).whenComplete((reason, error) -> {
+            inFlight.remove(key, created);
+            if (error != null) {
+                logger.warning("[ATOX] Error analyzing username " + name + ": " + error.getMessage());
+                created.complete("");
+                return;
+            }
+            String verdict = reason != null ? reason : "";
+            usernameCache.cacheResult(name, verdict);
+            created.complete(verdict);
+        });
+        return created;
+    }
+
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+}